@@ -0,0 +1,254 @@
+package embedjs;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ Micro benchmarks of the Embed pipeline stages on generated pages.
+
+    java -cp out:lib/yuicompressor-2.4.7.jar embedjs.Bench [-k KB][-t N][-n N][-s stage]
+
+ -k page size in kilobytes (default 256)
+ -t tags (&lt;img&gt;, &lt;link&gt;, &lt;script&gt;, comments) per kilobyte of page (default 2)
+ -n measured iterations per stage (default 20, the same number of warm up iterations precede them)
+ -s run only stages which name contains the string
+
+ For every stage prints throughput in MB/s of input and allocation rate (bytes allocated
+ by the benchmark thread per second and per byte of input) so results can be compared
+ against a baseline run of the previous revision.
+*/
+
+public class Bench {
+
+    private static final String LOREM = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod " +
+            "tempor incididunt ut labore et dolore magna aliqua. ";
+
+    private static long sink; // results of stages that return values, printed so that the JIT cannot drop the work
+
+    private static abstract class Stage {
+        final String name;
+        final long bytes; // input size of one iteration
+
+        Stage(String name, long bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        abstract void run() throws IOException;
+    }
+
+    private static class Null extends Writer {
+
+        public void write(char[] buf, int off, int len) {
+        }
+
+        public void write(String s, int off, int len) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+
+    public static void main(String[] a) throws IOException {
+        int kb = 256;
+        int density = 2;
+        int n = 20;
+        String only = "";
+        for (int i = 0; i + 1 < a.length; i += 2) {
+            if ("-k".equals(a[i])) {
+                kb = Integer.parseInt(a[i + 1]);
+            } else if ("-t".equals(a[i])) {
+                density = Integer.parseInt(a[i + 1]);
+            } else if ("-n".equals(a[i])) {
+                n = Integer.parseInt(a[i + 1]);
+            } else if ("-s".equals(a[i])) {
+                only = a[i + 1];
+            }
+        }
+        File root = File.createTempFile("embedjs-bench", "");
+        if (!root.delete() || !root.mkdirs()) {
+            throw new IOException("failed to create " + root);
+        }
+        try {
+            File src = new File(root, "src");
+            File dst = new File(root, "dst");
+            final File page = generate(src, kb, density);
+            if (!dst.mkdirs()) {
+                throw new IOException("failed to create " + dst);
+            }
+            Embed.init(src, dst);
+            System.out.println("page " + kb + " KB, " + density + " tags/KB, " + n + " iterations");
+            System.out.printf("%-24s %12s %14s %12s%n", "stage", "MB/s", "alloc MB/s", "alloc B/B");
+            for (Stage s : stages(page)) {
+                if (s.name.contains(only)) {
+                    measure(s, n);
+                }
+            }
+            System.out.println("checksum " + sink);
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static List<Stage> stages(final File page) throws IOException {
+        final String html = new String(io.readFully(page), "UTF8");
+        final String comments = html.replace("<img", "<i mg").replace("<link", "<l ink").replace("<script", "<s cript");
+        final File css = new File(page.getParentFile(), "css/s0.css");
+        final String compressed = Embed.compile(css, new Stats("bench"));
+        final File js = new File(page.getParentFile(), "js/j0.js");
+        final File img = new File(page.getParentFile(), "img/i0.png");
+        final String tag = "<img alt=\"x\" class=\"icon\" src=\"img/i0.png\" width=16 height=16 />";
+        final Writer w = new Null();
+        ArrayList<Stage> stages = new ArrayList<Stage>();
+        stages.add(new Stage("scan (comments only)", comments.length()) {
+            void run() throws IOException {
+                new Embed(page).scan(comments, w, true, true, false);
+            }
+        });
+        stages.add(new Stage("scan (page)", html.length()) {
+            void run() throws IOException {
+                new Embed(page).scan(html, w, true, true, false);
+            }
+        });
+        stages.add(new Stage("encodeDataUris", compressed.length()) {
+            void run() throws IOException {
+                new Embed(page).encodeDataUris(css, compressed, w);
+            }
+        });
+        stages.add(new Stage("base64EncodedFileForCss", img.length()) {
+            void run() throws IOException {
+                new Embed(page).base64EncodedFileForCss(w, img.getPath());
+            }
+        });
+        stages.add(new Stage("valueOf", tag.length() * 1000) {
+            void run() {
+                for (int i = 0; i < 1000; i++) {
+                    sink += Embed.valueOf("src", tag).length();
+                }
+            }
+        });
+        final Embed e = new Embed(page);
+        stages.add(new Stage("locateFile", 1000 * "img/i0.png".length()) {
+            void run() {
+                for (int i = 0; i < 1000; i++) {
+                    sink += e.locateFile("img/i0.png").getPath().length();
+                }
+            }
+        });
+        stages.add(new Stage("compile (js)", js.length()) {
+            void run() {
+                Embed.compile(js, new Stats("bench"));
+            }
+        });
+        stages.add(new Stage("compile (css)", css.length()) {
+            void run() {
+                Embed.compile(css, new Stats("bench"));
+            }
+        });
+        return stages;
+    }
+
+    private static void measure(Stage s, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            s.run(); // warm up
+        }
+        long allocated = allocated();
+        long time = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            s.run();
+        }
+        time = Math.max(1, System.nanoTime() - time);
+        allocated = allocated() - allocated;
+        double seconds = time / 1e9;
+        double mb = (double)s.bytes * n / (1024 * 1024);
+        System.out.printf("%-24s %12.1f %14s %12s%n", s.name, mb / seconds,
+                allocated < 0 ? "n/a" : String.format("%.1f", allocated / seconds / (1024 * 1024)),
+                allocated < 0 ? "n/a" : String.format("%.2f", (double)allocated / ((double)s.bytes * n)));
+    }
+
+    /** @return bytes allocated by current thread so far or -1 if JVM does not tell */
+    private static long allocated() {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /** @return generated page referencing generated images, stylesheets and scripts */
+    private static File generate(File src, int kb, int density) throws IOException {
+        Random r = new Random(1);
+        for (int i = 0; i < 10; i++) {
+            byte[] png = new byte[2048 + r.nextInt(2048)];
+            r.nextBytes(png);
+            write(new File(src, "img/i" + i + ".png"), png);
+        }
+        for (int i = 0; i < 5; i++) {
+            StringBuilder css = new StringBuilder();
+            for (int k = 0; k < 200; k++) {
+                css.append("/* rule ").append(k).append(" */\n.c").append(k).append(" {\n    color: #")
+                   .append(Integer.toHexString(0x100000 + r.nextInt(0xEFFFFF))).append(";\n    margin: 0px 1em;\n");
+                if (k % 20 == 0) {
+                    css.append("    background-image: url(\"../img/i").append(r.nextInt(10)).append(".png\");\n");
+                }
+                css.append("}\n");
+            }
+            write(new File(src, "css/s" + i + ".css"), css.toString().getBytes("UTF8"));
+            StringBuilder js = new StringBuilder();
+            for (int k = 0; k < 100; k++) {
+                js.append("/* function ").append(k).append(" */\nfunction f").append(k)
+                  .append("(argument, another) {\n    var result = argument + another * ").append(k)
+                  .append(";\n    return result > 0 ? result : -result;\n}\n");
+            }
+            write(new File(src, "js/j" + i + ".js"), js.toString().getBytes("UTF8"));
+        }
+        StringBuilder html = new StringBuilder(kb * 1024 + 1024);
+        html.append("<!DOCTYPE html>\n<html>\n<head>\n<title>bench</title>\n</head>\n<body>\n");
+        int gap = 1024 / Math.max(1, density);
+        int k = 0;
+        while (html.length() < kb * 1024) {
+            for (int n = 0; n < gap; n += LOREM.length()) {
+                html.append(LOREM);
+            }
+            switch (k++ % 4) {
+                case 0: html.append("<img src=\"img/i").append(r.nextInt(10)).append(".png\" />\n"); break;
+                case 1: html.append("<link rel=\"stylesheet\" href=\"css/s").append(r.nextInt(5)).append(".css\" />\n"); break;
+                case 2: html.append("<script type=\"text/javascript\" src=\"js/j").append(r.nextInt(5)).append(".js\"></script>\n"); break;
+                default: html.append("<!-- comment ").append(k).append(" -->\n"); break;
+            }
+        }
+        html.append("</body>\n</html>\n");
+        File page = new File(src, "bench.html");
+        write(page, html.toString().getBytes("UTF8"));
+        return page;
+    }
+
+    private static void write(File f, byte[] bytes) throws IOException {
+        if (!io.isDirectory(f.getParentFile()) && !f.getParentFile().mkdirs()) {
+            throw new IOException("failed to create " + f.getParentFile());
+        }
+        OutputStream os = new FileOutputStream(f);
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File c : files) {
+                delete(c);
+            }
+        }
+        if (!f.delete()) {
+            System.err.println("WARNING: failed to delete " + f);
+        }
+    }
+
+}
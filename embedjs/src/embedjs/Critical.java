@@ -0,0 +1,601 @@
+package embedjs;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ Splits stylesheet into rules needed to render the page as written (critical) and
+ the rest (see -f). Tags, ids and classes are taken from the page markup; a rule is
+ critical if any of its selectors can match: every type, #id and .class of every
+ compound selector is present in the page. Attribute selectors, pseudo classes and
+ pseudo elements are ignored, so the split errs on the side of critical.
+ Elements created by scripts are not known and their rules are deferred.
+ @font-face is deferred too (text is rendered with fallback font meanwhile),
+ other at-rules without selectors are kept critical.
+
+ Also drops rules that cannot match the page at all (see -p): for that every word
+ found in the page scripts may be a tag, id or class, and so may
+ every name on the allowlist ("name" or "prefix*") for classes added by other means.
+
+ And tells which characters the page may render with a font (see -g): text of the
+ elements that rules setting the font family can match (whole page if the rule is
+ not limited to tags, ids or classes), plus strings and attr() values of content
+ properties of all rules that can match the page, whatever their font. Scripts count
+ here as they do for pruning.
+*/
+
+public class Critical {
+
+    private static final Pattern TAG = Pattern.compile("<([a-zA-Z][a-zA-Z0-9-]*)([^>]*)>");
+    private static final Pattern ATTR = Pattern.compile(
+            "(?i)\\b(id|class)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))");
+    private static final Pattern SCRIPT = Pattern.compile("(?is)<script[^>]*>(.*?)</script>");
+    private static final Pattern WORD = Pattern.compile("[A-Za-z_-][A-Za-z0-9_-]*");
+    private static final Pattern FONT_FACE = Pattern.compile("(?i)@font-face\\s*\\{([^}]*)\\}");
+    private static final Pattern FAMILY = Pattern.compile("(?i)font-family\\s*:\\s*([^;}]+)");
+    private static final Pattern URL = Pattern.compile("url\\(([^)]*)\\)");
+    private static final Pattern ATTRIBUTE_SELECTOR = Pattern.compile(
+            "\\[\\s*([\\w-]+)\\s*(?:([~|^$*]?=)\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\\]]+))\\s*[iIsS]?\\s*)?\\]");
+    private static final Pattern RAW = Pattern.compile("(?i)<(script|style)\\b[^>]*>.*?</\\1\\s*>", Pattern.DOTALL);
+
+    private final HashSet<String> tags = new HashSet<String>();
+    private final HashSet<String> ids = new HashSet<String>();
+    private final HashSet<String> classes = new HashSet<String>();
+    private final HashSet<String> words = new HashSet<String>(); // from scripts: any of the above
+    private final String[] keep; // allowlist, null unless pruning
+    private final String html;
+
+    /** scripts: collect words of the page scripts even if not pruning (see chars()) */
+    public Critical(String html, String[] keep, boolean scripts) {
+        this.keep = keep;
+        this.html = html;
+        tags.add("html");
+        tags.add("body");
+        Matcher m = TAG.matcher(html);
+        while (m.find()) {
+            tags.add(m.group(1).toLowerCase());
+            attributes(m.group(2), ids, classes);
+        }
+        if (keep != null || scripts) {
+            m = SCRIPT.matcher(html);
+            while (m.find()) {
+                script(m.group(1));
+            }
+        }
+    }
+
+    /**
+     Collects words of the script embedded in the page. Every word counts, not only
+     string literals, class names are often built from pieces or kept in variables.
+    */
+    public void script(String js) {
+        Matcher w = WORD.matcher(js);
+        while (w.find()) {
+            words.add(w.group());
+        }
+    }
+
+    private static void attributes(String attrs, Set<String> ids, Set<String> classes) {
+        Matcher a = ATTR.matcher(attrs);
+        while (a.find()) {
+            String v = a.group(2) != null ? a.group(2) : a.group(3) != null ? a.group(3) : a.group(4);
+            if ("id".equalsIgnoreCase(a.group(1))) {
+                ids.add(v.trim());
+            } else {
+                for (String c : v.trim().split("\\s+")) {
+                    classes.add(c);
+                }
+            }
+        }
+    }
+
+    /** writes rules of css that can match the page to w @return number of chars dropped */
+    public int prune(String css, Writer w) throws IOException {
+        StringBuilder dropped = new StringBuilder();
+        split(css, w, dropped, false);
+        return dropped.length();
+    }
+
+    /** writes critical rules of css to critical and appends the rest to rest */
+    public void split(String css, Writer critical, StringBuilder rest) throws IOException {
+        split(css, critical, rest, true);
+    }
+
+    private void split(String css, Writer critical, StringBuilder rest, boolean fonts) throws IOException {
+        int n = css.length();
+        int i = 0;
+        while (i < n) {
+            int b = next(css, i, "{;}");
+            if (b < 0 || css.charAt(b) == '}') { // trailing garbage or stray brace
+                critical.write(css, i, n - i);
+                return;
+            }
+            if (css.charAt(b) == ';') { // @charset, @import, @namespace...
+                critical.write(css, i, b + 1 - i);
+                i = b + 1;
+                continue;
+            }
+            int e = close(css, b);
+            String prelude = css.substring(i, b).trim();
+            String lc = prelude.toLowerCase();
+            if (lc.startsWith("@media") || lc.startsWith("@supports")) {
+                StringWriter in = new StringWriter();
+                StringBuilder out = new StringBuilder();
+                split(css.substring(b + 1, e), in, out, fonts);
+                if (in.getBuffer().length() > 0) {
+                    critical.write(prelude + "{" + in + "}");
+                }
+                if (out.length() > 0) {
+                    rest.append(prelude).append('{').append(out).append('}');
+                }
+            } else if (fonts && lc.startsWith("@font-face")) {
+                rest.append(css, i, Math.min(n, e + 1));
+            } else if (lc.startsWith("@") || matches(prelude, false)) {
+                critical.write(css, i, Math.min(n, e + 1) - i);
+            } else {
+                rest.append(css, i, Math.min(n, e + 1));
+            }
+            i = e + 1;
+        }
+    }
+
+    /**
+     @return true if any selector of the comma separated list can match the page,
+     scripts: words of the scripts count even if not pruning
+    */
+    boolean matches(String selectors, boolean scripts) {
+        for (String s : split(selectors, ',')) {
+            if (matchesSelector(s.trim(), scripts)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesSelector(String s, boolean scripts) {
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c == '[') { // attribute selector
+                i = skip(s, i, '[', ']');
+            } else if (c == ':') { // pseudo class or element, with arguments
+                i++;
+                while (i < n && s.charAt(i) == ':') {
+                    i++;
+                }
+                i = ident(s, i);
+                if (i < n && s.charAt(i) == '(') {
+                    i = skip(s, i, '(', ')');
+                }
+            } else if (c == '#' || c == '.') {
+                int e = ident(s, i + 1);
+                String name = unescape(s.substring(i + 1, e));
+                if (!known(c == '#' ? ids : classes, name, scripts)) {
+                    return false;
+                }
+                i = e;
+            } else if (Character.isLetter(c) || c == '-' || c == '_') {
+                int e = ident(s, i);
+                String tag = s.substring(i, e).toLowerCase();
+                int bar = tag.indexOf('|'); // namespace prefix
+                if (!known(tags, bar < 0 ? tag : tag.substring(bar + 1), scripts)) {
+                    return false;
+                }
+                i = e;
+            } else {
+                i++; // combinators, universal selector and whitespace
+            }
+        }
+        return true;
+    }
+
+    private boolean known(HashSet<String> set, String name, boolean scripts) {
+        if (set.contains(name) || (keep != null || scripts) && words.contains(name)) {
+            return true;
+        }
+        if (keep != null) {
+            for (String k : keep) {
+                if (k.endsWith("*") ? name.startsWith(k.substring(0, k.length() - 1)) : name.equals(k)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** @return family -> urls of fonts declared by @font-face rules of css */
+    public static LinkedHashMap<String, List<String>> fonts(String css) {
+        LinkedHashMap<String, List<String>> r = new LinkedHashMap<String, List<String>>();
+        Matcher m = FONT_FACE.matcher(css);
+        while (m.find()) {
+            Matcher f = FAMILY.matcher(m.group(1));
+            if (f.find()) {
+                String family = family(f.group(1));
+                List<String> urls = r.get(family);
+                if (urls == null) {
+                    r.put(family, urls = new ArrayList<String>());
+                }
+                Matcher u = URL.matcher(m.group(1));
+                while (u.find()) {
+                    urls.add(u.group(1));
+                }
+            }
+        }
+        return r;
+    }
+
+    /** @return code points, in ascending order, the page may render with the font family */
+    public int[] chars(String family, List<String> sheets) {
+        TreeSet<Integer> r = new TreeSet<Integer>();
+        for (String css : sheets) {
+            chars(css, family(family), r);
+        }
+        int[] a = new int[r.size()];
+        int i = 0;
+        for (int c : r) {
+            a[i++] = c;
+        }
+        return a;
+    }
+
+    private void chars(String css, String family, TreeSet<Integer> r) {
+        int n = css.length();
+        int i = 0;
+        while (i < n) {
+            int b = next(css, i, "{;}");
+            if (b < 0 || css.charAt(b) == '}') {
+                return;
+            }
+            if (css.charAt(b) == ';') {
+                i = b + 1;
+                continue;
+            }
+            int e = close(css, b);
+            String prelude = css.substring(i, b).trim();
+            String lc = prelude.toLowerCase();
+            String body = css.substring(b + 1, Math.min(n, e));
+            if (lc.startsWith("@media") || lc.startsWith("@supports")) {
+                chars(body, family, r);
+            } else if (!lc.startsWith("@")) {
+                for (int k = 0; k < body.length(); ) {
+                    int end = next(body, k, ";");
+                    end = end < 0 ? body.length() : end;
+                    String d = body.substring(k, end);
+                    int colon = d.indexOf(':');
+                    String name = colon < 0 ? "" : d.substring(0, colon).trim().toLowerCase();
+                    String value = colon < 0 ? "" : d.substring(colon + 1).trim();
+                    if (name.equals("content") && matches(prelude, true)) {
+                        content(value, r);
+                    } else if ((name.equals("font-family") || name.equals("font")) && uses(value, family)) {
+                        for (String s : split(prelude, ',')) {
+                            if (matchesSelector(s.trim(), true)) {
+                                text(subject(s.trim()), r);
+                            }
+                        }
+                    }
+                    k = end + 1;
+                }
+            }
+            i = e + 1;
+        }
+    }
+
+    private static String family(String s) {
+        s = s.replace("!important", "").trim();
+        return unquote(s).trim().toLowerCase();
+    }
+
+    private static String unquote(String s) {
+        int n = s.length();
+        return n >= 2 && (s.charAt(0) == '"' || s.charAt(0) == '\'') && s.charAt(n - 1) == s.charAt(0) ?
+               s.substring(1, n - 1) : s;
+    }
+
+    /** @return true if value of font-family or font property lists the family */
+    private static boolean uses(String value, String family) {
+        for (String f : split(value, ',')) {
+            f = family(f);
+            if (f.equals(family) || f.endsWith(" " + family)) { // font: 12px/1.5 family
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return last compound selector of the complex one: "a .b > c.d:before" is "c.d:before" */
+    private static String subject(String s) {
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '(' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == ']') {
+                depth--;
+            } else if (depth == 0 && (Character.isWhitespace(c) || c == '>' || c == '+' || c == '~')) {
+                start = i + 1;
+            }
+        }
+        return s.substring(start);
+    }
+
+    /**
+     Adds text of elements matching tag, id, classes and attributes of the compound selector
+     (pseudo classes ignored). Nothing for ::before and ::after, their text is the content.
+    */
+    private void text(String compound, TreeSet<Integer> r) {
+        String tag = null;
+        HashSet<String> id = new HashSet<String>();
+        HashSet<String> cls = new HashSet<String>();
+        ArrayList<String[]> attrs = new ArrayList<String[]>(); // {name, operator, value}
+        int n = compound.length();
+        int i = 0;
+        while (i < n) {
+            char c = compound.charAt(i);
+            if (c == '[') {
+                int e = skip(compound, i, '[', ']');
+                Matcher a = ATTRIBUTE_SELECTOR.matcher(compound.substring(i, e));
+                if (a.matches()) {
+                    attrs.add(new String[]{a.group(1), a.group(2), a.group(3) != null ? a.group(3) :
+                            a.group(4) != null ? a.group(4) : a.group(5)});
+                }
+                i = e;
+            } else if (c == ':') {
+                i++;
+                while (i < n && compound.charAt(i) == ':') {
+                    i++;
+                }
+                int e = ident(compound, i);
+                String pseudo = compound.substring(i, e).toLowerCase();
+                if (pseudo.equals("before") || pseudo.equals("after")) {
+                    return;
+                }
+                i = e;
+                if (i < n && compound.charAt(i) == '(') {
+                    i = skip(compound, i, '(', ')');
+                }
+            } else if (c == '#' || c == '.') {
+                int e = ident(compound, i + 1);
+                (c == '#' ? id : cls).add(unescape(compound.substring(i + 1, e)));
+                i = e;
+            } else if (Character.isLetter(c) || c == '-' || c == '_') {
+                int e = ident(compound, i);
+                tag = compound.substring(i, e).toLowerCase();
+                tag = tag.substring(tag.indexOf('|') + 1);
+                i = e;
+            } else {
+                i++;
+            }
+        }
+        if (tag == null && id.isEmpty() && cls.isEmpty() && attrs.isEmpty() || "html".equals(tag) || "body".equals(tag)) {
+            text(0, html.length(), r);
+            return;
+        }
+        Matcher m = TAG.matcher(html);
+        while (m.find()) {
+            String name = m.group(1).toLowerCase();
+            if (tag != null && !tag.equals(name)) {
+                continue;
+            }
+            HashSet<String> ids = new HashSet<String>();
+            HashSet<String> classes = new HashSet<String>();
+            attributes(m.group(2), ids, classes);
+            if (ids.containsAll(id) && classes.containsAll(cls) && attributes(m.group(2), attrs)) {
+                Matcher e = Pattern.compile("(?i)<(/?)" + Pattern.quote(name) + "\\b").matcher(html);
+                int depth = 1;
+                int end = m.end();
+                while (depth > 0 && e.find(end)) {
+                    depth += e.group(1).isEmpty() ? 1 : -1;
+                    end = depth > 0 ? e.end() : e.start();
+                }
+                if (depth == 0) {
+                    text(m.end(), end, r);
+                }
+            }
+        }
+    }
+
+    /** @return true if the attributes of the tag satisfy all the attribute selectors */
+    private static boolean attributes(String tag, List<String[]> attrs) {
+        for (String[] a : attrs) {
+            Matcher m = Pattern.compile("(?i)(?:^|\\s)" + Pattern.quote(a[0]) +
+                    "(?:\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+)))?(?=[\\s/>]|$)").matcher(tag);
+            if (!m.find()) {
+                return false;
+            }
+            String v = m.group(1) != null ? m.group(1) : m.group(2) != null ? m.group(2) : m.group(3) != null ? m.group(3) : "";
+            String op = a[1] == null ? "" : a[1];
+            String w = a[2] == null ? "" : a[2];
+            boolean ok = op.isEmpty() || op.equals("=") && v.equals(w) || op.equals("^=") && v.startsWith(w) ||
+                    op.equals("$=") && v.endsWith(w) || op.equals("*=") && v.contains(w) ||
+                    op.equals("~=") && (" " + v.trim() + " ").contains(" " + w + " ") ||
+                    op.equals("|=") && (v.equals(w) || v.startsWith(w + "-"));
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** adds characters of the text (tags, scripts and styles skipped, entities decoded) */
+    private void text(int from, int to, TreeSet<Integer> r) {
+        int i = from;
+        while (i < to) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                Matcher m = RAW.matcher(html).region(i, to);
+                int e = m.lookingAt() ? m.end() - 1 : html.indexOf('>', i);
+                i = e < 0 || e >= to ? to : e + 1;
+            } else {
+                int e = html.indexOf('<', i);
+                e = e < 0 || e > to ? to : e;
+                decode(html.substring(i, e), r);
+                i = e;
+            }
+        }
+    }
+
+    /** adds characters of html text with character references decoded */
+    private static void decode(String s, TreeSet<Integer> r) {
+        for (int i = 0; i < s.length(); ) {
+            int c = s.codePointAt(i);
+            int semi = c == '&' ? s.indexOf(';', i) : -1;
+            if (semi > i && semi < i + 10) {
+                String e = s.substring(i + 1, semi).toLowerCase();
+                try {
+                    c = e.startsWith("#x") ? Integer.parseInt(e.substring(2), 16) :
+                        e.startsWith("#") ? Integer.parseInt(e.substring(1)) :
+                        e.equals("amp") ? '&' : e.equals("lt") ? '<' : e.equals("gt") ? '>' :
+                        e.equals("quot") ? '"' : e.equals("apos") ? '\'' : e.equals("nbsp") ? 0xA0 : '&';
+                    i = c == '&' && !e.equals("amp") ? i + 1 : semi + 1;
+                } catch (NumberFormatException x) {
+                    i++;
+                }
+            } else {
+                i += Character.charCount(c);
+            }
+            r.add(Character.isWhitespace(c) ? ' ' : c);
+        }
+    }
+
+    /** adds characters of strings and attr() values of the content property */
+    private void content(String value, TreeSet<Integer> r) {
+        int n = value.length();
+        for (int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\'') {
+                int e = string(value, i);
+                for (int k = i + 1; k < e; ) {
+                    int ch = value.codePointAt(k);
+                    if (ch != '\\') {
+                        r.add(ch);
+                        k += Character.charCount(ch);
+                        continue;
+                    }
+                    int h = k + 1;
+                    while (h < e && h < k + 7 && Character.digit(value.charAt(h), 16) >= 0) {
+                        h++;
+                    }
+                    if (h > k + 1) {
+                        r.add(Integer.parseInt(value.substring(k + 1, h), 16));
+                        k = h < e && Character.isWhitespace(value.charAt(h)) ? h + 1 : h;
+                    } else {
+                        if (k + 1 < e && value.charAt(k + 1) != '\n') {
+                            r.add(value.codePointAt(k + 1));
+                        }
+                        k += 2;
+                    }
+                }
+                i = e;
+            } else if (value.regionMatches(true, i, "attr(", 0, 5)) {
+                int e = value.indexOf(')', i);
+                e = e < 0 ? n : e;
+                String name = value.substring(i + 5, e).trim().split("\\s")[0];
+                Matcher m = Pattern.compile("(?i)\\s" + Pattern.quote(name) +
+                        "\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))").matcher(html);
+                while (m.find()) {
+                    decode(m.group(1) != null ? m.group(1) : m.group(2) != null ? m.group(2) : m.group(3), r);
+                }
+                i = e;
+            }
+        }
+    }
+
+    private static int ident(String s, int i) {
+        int n = s.length();
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < n) {
+                i += 2;
+            } else if (Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '|' || c > 0x7F) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static String unescape(String s) {
+        return s.indexOf('\\') < 0 ? s : s.replaceAll("\\\\(.)", "$1");
+    }
+
+    /** @return index after the bracket matching the one at i */
+    private static int skip(String s, int i, char open, char close) {
+        int depth = 0;
+        for (int n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c == open) {
+                depth++;
+            } else if (c == close && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return i;
+    }
+
+    private static ArrayList<String> split(String s, char separator) {
+        ArrayList<String> r = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '(' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == ']') {
+                depth--;
+            } else if (c == separator && depth == 0) {
+                r.add(s.substring(start, i));
+                start = i + 1;
+            }
+        }
+        r.add(s.substring(start));
+        return r;
+    }
+
+    /** @return index of the first of the chars at or after i outside of strings or -1 */
+    private static int next(String s, int i, String chars) {
+        for (int n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\'') {
+                i = string(s, i);
+            } else if (chars.indexOf(c) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return index of the brace closing the block opened at b (or length of s) */
+    private static int close(String s, int b) {
+        int depth = 0;
+        for (int n = s.length(), i = b; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\'') {
+                i = string(s, i);
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i;
+            }
+        }
+        return s.length();
+    }
+
+    /** @return index of the quote closing the string started at i */
+    private static int string(String s, int i) {
+        char q = s.charAt(i);
+        for (int n = s.length(), k = i + 1; k < n; k++) {
+            char c = s.charAt(k);
+            if (c == '\\') {
+                k++;
+            } else if (c == q) {
+                return k;
+            }
+        }
+        return s.length();
+    }
+
+}
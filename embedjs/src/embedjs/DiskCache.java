@@ -0,0 +1,155 @@
+package embedjs;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ Content addressed cache of compressed scripts, stylesheets (and optimized images) shared between runs
+ (and concurrently running builds). Entries are written to a temporary file and
+ atomically renamed into place, so readers never see partially written entry.
+ Least recently used entries (by last modified time, touched on every hit) are
+ deleted when total size exceeds the limit.
+*/
+
+public class DiskCache {
+
+    private final File dir;
+    private final long limit;
+    private final AtomicLong size = new AtomicLong(-1); // unknown until first put
+
+    public DiskCache(File dir, long limit) {
+        this.dir = dir;
+        this.limit = limit;
+    }
+
+    /** @return key for the content compressed with given options (content is streamed, not kept) */
+    public static String key(String options, InputStream content) throws IOException {
+        byte[] prefix = (options + '\0').getBytes("UTF8");
+        return io.sha256(new SequenceInputStream(new ByteArrayInputStream(prefix), content));
+    }
+
+    /** @return cached value or null */
+    public String get(String key) {
+        byte[] bytes = read(key);
+        try {
+            return bytes == null ? null : new String(bytes, "UTF8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    public void put(String key, String value) {
+        try {
+            write(key, value.getBytes("UTF8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    /** @return cached bytes or null */
+    public byte[] read(String key) {
+        File f = file(key);
+        if (!io.isFile(f)) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(f.toPath());
+            f.setLastModified(System.currentTimeMillis());
+            return bytes;
+        } catch (IOException e) {
+            return null; // evicted by another build in the meantime
+        }
+    }
+
+    public void write(String key, byte[] bytes) {
+        File f = file(key);
+        File d = f.getParentFile();
+        if (!io.isDirectory(d) && !d.mkdirs() && !io.isDirectory(d)) {
+            return; // cache is optional
+        }
+        try {
+            File t = io.sibling(f);
+            try {
+                Files.write(t.toPath(), bytes);
+                try {
+                    Files.move(t.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException x) {
+                    Files.move(t.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                io.discard(t);
+            }
+            if (size.get() < 0) {
+                size.compareAndSet(-1, total());
+            } else {
+                size.addAndGet(bytes.length);
+            }
+            if (size.get() > limit) {
+                evict();
+            }
+        } catch (IOException e) {
+            System.err.println("WARNING: failed to write " + f + " " + e.getMessage());
+        }
+    }
+
+    private File file(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+
+    private ArrayList<File> entries() {
+        ArrayList<File> entries = new ArrayList<File>();
+        File[] dirs = dir.listFiles();
+        if (dirs != null) {
+            for (File d : dirs) {
+                File[] files = d.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        if (!f.getName().endsWith(".tmp")) { // being written right now
+                            entries.add(f);
+                        }
+                    }
+                }
+            }
+        }
+        return entries;
+    }
+
+    private long total() {
+        long total = 0;
+        for (File f : entries()) {
+            total += f.length();
+        }
+        return total;
+    }
+
+    private synchronized void evict() {
+        ArrayList<File> entries = entries();
+        final HashMap<File, Long> time = new HashMap<File, Long>(entries.size());
+        long total = 0;
+        for (File f : entries) {
+            time.put(f, f.lastModified());
+            total += f.length();
+        }
+        Collections.sort(entries, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long ta = time.get(a);
+                long tb = time.get(b);
+                return ta < tb ? -1 : ta > tb ? 1 : 0;
+            }
+        });
+        long target = limit - limit / 4; // leave some room so that eviction does not happen on every put
+        for (File f : entries) {
+            if (total <= target) {
+                break;
+            }
+            long n = f.length();
+            if (f.delete()) {
+                total -= n;
+            }
+        }
+        size.set(total);
+    }
+
+}
@@ -1,9 +1,14 @@
 package embedjs;
 
-import com.google.common.util.*;
+import com.yahoo.platform.yui.compressor.*;
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
 
 import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 /**
@@ -22,24 +27,103 @@ import java.util.regex.*;
 
 */
 
-public class Embed {
-
-    private final static int BUFFER_SIZE = 1024 * 1204;
+public class Embed implements Callable<Embed> {
 
     private static File src_dir;
-    private static File src_file;
-    private static File all_js;
-    private static File all_css;
-    private static OutputStream out_js;
-    private static OutputStream out_css;
-    private static String name_all_js;
-    private static String name_all_css;
+    private static File dst_dir;
     private static boolean all;
     private static boolean dyn;
+    private static boolean unique;
+    private static boolean gzip;
+    private static boolean recursive; // pages at any depth of src_dir, mirrored under dst_dir (see -R)
+    private static boolean critical; // inline only stylesheet rules that match the page, defer the rest (see -f)
+    private static boolean inline_svg; // replace <img> of svg with <svg> element (see -s)
+    private static boolean glyphs; // embed fonts subset to characters of the page (see -g)
+    private static String[] keep; // allowlist of names used by rules that are never pruned, null unless -p
+    private static Images optimizer; // PNG/GIF (-o) and JPEG (-q) re-encoding, null unless either
+    private static long inline_max; // larger assets are copied to dst_dir instead (see -t), 0 inlines all
+    private static int sprite_max; // background images up to this size in pixels are packed into sprites (see -b), 0 if not
+    private static int jobs = 1;
+    private static Manifest manifest; // null unless incremental (-i)
+    private static ExecutorService pool; // null unless -j N > 1
+    private static DiskCache disk; // compressed scripts and stylesheets, null if "-c none"
+    private static Report report; // null unless -r
+    private static final long DISK_CACHE_LIMIT = 256L * 1024 * 1024;
+
+    // per page state, one instance of Embed per processed page:
+    private final File in;
+    private final String name; // path relative to src_dir with '/' separators
+    private final String root; // from the output page back to dst_dir: "" or "../" repeated
+    private String assets; // from the text being written to copies of assets in dst_dir: root, "" in copied stylesheets
+    private final File src_file;
+    private final File all_js;
+    private final File all_css;
+    private final String name_all_js;
+    private final String name_all_css;
+    private Writer out_js;
+    private Writer out_css;
+    // temporary file -> output file it atomically replaces once the page is done:
+    private final LinkedHashMap<File, File> temps = new LinkedHashMap<File, File>(4);
+    // every file the page was built from and every file written for it:
+    private final LinkedHashSet<File> inputs = new LinkedHashSet<File>();
+    private final ArrayList<File> outputs = new ArrayList<File>(3);
+    private LinkedHashMap<String, String> hashes;
+    // -u: assets used from css are defined once as custom properties, repeated images share one data uri
+    private final ArrayList<File> vars = new ArrayList<File>();
+    private final HashMap<String, Integer> var_index = new HashMap<String, Integer>();
+    private int defined; // number of vars already written
+    private final HashMap<String, Integer> images = new HashMap<String, Integer>();
+    private boolean repeated; // image repeated since the last time the script has been written
+    // messages are collected per page and printed in page order (see flush)
+    private final ArrayList<Object> log = new ArrayList<Object>();
+    private final Stats stats;
+    private final HashSet<String> importing = new HashSet<String>(); // stylesheets being inlined (see style)
+    private Critical dom; // tags, ids and classes of the page (see -f, -p and -g)
+    private String html; // page being embedded without comments, for -g
+    private HashMap<String, String> families; // font used by the page -> its family (see -g)
+    private final ArrayList<String> page_css = new ArrayList<String>(); // all stylesheets of the page (see -g)
+    private final StringBuilder pending = new StringBuilder(); // -all.css rules pruned when the page is done
 
+    Embed(File in) {
+        String name = in.getName().toLowerCase();
+        String prefix = name.substring(0, name.lastIndexOf('.'));
+        this.in = in;
+        this.name = relative(in);
+        src_file = new File(dst_dir, this.name);
+        File dir = src_file.getParentFile();
+        name_all_js = prefix + "-all.js";
+        name_all_css = prefix + "-all.css";
+        all_js = all ? new File(dir, name_all_js) : null;
+        all_css = all || critical ? new File(dir, name_all_css) : null;
+        StringBuilder up = new StringBuilder();
+        for (int i = this.name.indexOf('/'); i >= 0; i = this.name.indexOf('/', i + 1)) {
+            up.append("../");
+        }
+        root = up.toString();
+        assets = root;
+        stats = new Stats(this.name);
+    }
+
+    /** @return path of the file relative to src_dir with '/' separators */
+    private static String relative(File f) {
+        return src_dir.toPath().relativize(io.getCanonicalFile(f).toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /** sets up directories without running the build (see Bench) */
+    static void init(File src, File dst) {
+        src_dir = io.getCanonicalFile(src);
+        dst_dir = io.getCanonicalFile(dst);
+    }
 
     public static void main(String[] a) {
         ArrayList<String> args = new ArrayList<String>(Arrays.asList(a));
+        boolean incremental = false;
+        boolean watch = false;
+        boolean optimize = false;
+        int quality = 0;
+        int max_size = 0;
+        int min_saving = 10;
+        String cache_dir = System.getProperty("user.home") + File.separator + ".cache" + File.separator + "embedjs";
         int i = 0;
         while (i < args.size()) {
             if ("-a".equals(args.get(i))) {
@@ -48,21 +132,111 @@ public class Embed {
             } else if ("-d".equals(args.get(i))) {
                 dyn = true;
                 args.remove(i);
+            } else if ("-z".equals(args.get(i))) {
+                gzip = true;
+                args.remove(i);
+            } else if ("-u".equals(args.get(i))) {
+                unique = true;
+                args.remove(i);
+            } else if ("-o".equals(args.get(i))) {
+                optimize = true;
+                args.remove(i);
+            } else if ("-f".equals(args.get(i))) {
+                critical = true;
+                args.remove(i);
+            } else if ("-g".equals(args.get(i))) {
+                glyphs = true;
+                args.remove(i);
+            } else if ("-s".equals(args.get(i))) {
+                inline_svg = true;
+                args.remove(i);
+            } else if ("-R".equals(args.get(i))) {
+                recursive = true;
+                args.remove(i);
+            } else if ("-w".equals(args.get(i))) {
+                watch = true;
+                args.remove(i);
+            } else if ("-i".equals(args.get(i))) {
+                incremental = true;
+                args.remove(i);
+            } else if ("-b".equals(args.get(i)) && i + 1 < args.size()) {
+                args.remove(i);
+                sprite_max = (int)parseNumber("-b", args.remove(i));
+            } else if ("-c".equals(args.get(i)) && i + 1 < args.size()) {
+                args.remove(i);
+                cache_dir = args.remove(i);
+            } else if ("-m".equals(args.get(i)) && i + 1 < args.size()) {
+                args.remove(i);
+                compiled = new Memo(parseNumber("-m", args.remove(i)) * 1024 * 1024);
+            } else if ("-r".equals(args.get(i)) && i + 1 < args.size()) {
+                args.remove(i);
+                report = new Report(new File(args.remove(i)));
+            } else if ("-p".equals(args.get(i)) && i + 1 < args.size()) {
+                args.remove(i);
+                String list = args.remove(i);
+                keep = "none".equals(list) ? new String[0] : list.trim().split("\\s*,\\s*");
+            } else if ("-q".equals(args.get(i)) && i + 1 < args.size()) {
+                args.remove(i);
+                String[] q = args.remove(i).split(",");
+                quality = (int)parseNumber("-q", q[0].trim());
+                max_size = q.length > 1 ? (int)parseNumber("-q", q[1].trim()) : 0;
+                min_saving = q.length > 2 ? (int)parseNumber("-q", q[2].trim()) : min_saving;
+                if (quality < 1 || quality > 100 || max_size < 0 || min_saving < 0 || min_saving > 100) {
+                    error("-q expects quality 1..100[,max size in pixels[,min saving 0..100%]]");
+                }
+            } else if ("-t".equals(args.get(i)) && i + 1 < args.size()) {
+                args.remove(i);
+                inline_max = parseNumber("-t", args.remove(i)) * 1024;
+            } else if ("-j".equals(args.get(i)) && i + 1 < args.size()) {
+                args.remove(i);
+                int n = (int)parseNumber("-j", args.remove(i));
+                jobs = n > 0 ? n : Runtime.getRuntime().availableProcessors();
             } else {
                 i++;
             }
         }
         if (args.size() < 2) {
-            System.err.println("usage: jar -jar embedjs.jar [-a][-d] <src_dir> <dest_dir>\n" +
+            System.err.println("usage: jar -jar embedjs.jar [-a][-d][-f][-g][-i][-j N][-o][-s][-u][-w][-z][-R][-b PX][-c dir][-m MB][-p names][-q Q[,PX[,S]]][-r file][-t KB] <src_dir> <dest_dir>\n" +
                     "or\n" +
                     "jar2bin embedjs.jar\n" +
                     "embedjs <scr> <dest>\n" +
                     "-a creates <name>-all.css and <name>-all.js and embeds references to those files;\n" +
-                    "-d do not include links to -all.css and -all.js into html files.");
+                    "-d do not include links to -all.css and -all.js into html files;\n" +
+                    "-f inline only stylesheet rules that match tags, ids and classes of the page, move the rest\n" +
+                    "   to <name>-all.css loaded without blocking rendering (preload, applied when loaded);\n" +
+                    "-g embed TrueType fonts subset to glyphs of characters the page may render with them:\n" +
+                    "   text of elements styled with the font and content of rules matching the page;\n" +
+                    "-i incremental: rebuild only pages whose inputs changed since previous run\n" +
+                    "   (content hashes are kept in <dest_dir>.manifest next to <dest_dir>);\n" +
+                    "-j N process up to N pages in parallel (0 means number of processors);\n" +
+                    "-o re-encode embedded PNG and GIF images as smaller lossless PNG when possible;\n" +
+                    "-s replace <img> of SVG images with the <svg> element itself (unless it has ids, styles\n" +
+                    "   or scripts); SVG images are always embedded as minified text, not base64;\n" +
+                    "-u embed each asset once per page: css url() become var(--embed-N) defined once,\n" +
+                    "   repeated <img> get data uri from the first one (small script at the end of the page);\n" +
+                    "-w keep watching <src_dir> and rebuild pages affected by changed files;\n" +
+                    "-R process pages in all subdirectories of <src_dir> too, writing them to the same\n" +
+                    "   subdirectories of <dest_dir> (pages are processed while the tree is still walked);\n" +
+                    "-z also write .gz (maximum compression) next to every written file when it is smaller;\n" +
+                    "-b PX pack PNG and GIF background images (no-repeat) up to PX pixels wide and high of\n" +
+                    "   each stylesheet into one sprite embedded once (custom property, as with -u) and show\n" +
+                    "   them with background-position; elements must not be larger than their image;\n" +
+                    "-c dir cache compressed scripts and stylesheets in dir (default ~/.cache/embedjs, \"none\" disables);\n" +
+                    "-m MB keep at most MB megabytes of compressed scripts and stylesheets in memory (default 64);\n" +
+                    "-p names drop rules that cannot match the page from <name>-all.css; classes, ids and tags\n" +
+                    "   are taken from the page and its scripts, plus comma separated names (\"prefix*\" matches\n" +
+                    "   any name starting with prefix) of those added otherwise, \"none\" if there are none;\n" +
+                    "-q Q[,PX[,S]] re-encode embedded JPEG photos at quality Q (1..100) without metadata,\n" +
+                    "   scaled down to at most PX pixels wide and high (give the size in markup), used only\n" +
+                    "   when at least S percent (default 10) smaller; photos are encoded on all processors;\n" +
+                    "-r file write JSON report of time spent in each phase, bytes, cache hits and assets\n" +
+                    "   per page, with the slowest pages and assets, to file when the build ends;\n" +
+                    "-t KB do not inline assets larger than KB kilobytes, copy them to <dest_dir> as\n" +
+                    "   <name>.<hash>.<ext> and reference the copy instead.");
             System.exit(1);
         }
         src_dir = io.getCanonicalFile(args.get(0));
-        File dst_dir = io.getCanonicalFile(args.get(1));
+        dst_dir = io.getCanonicalFile(args.get(1));
         if (!src_dir.isDirectory()) {
             error(src_dir + " does not exist or is not a directory");
         }
@@ -77,61 +251,641 @@ public class Embed {
             error("Nothing to do. No *.html resources found at: " + src_dir);
             return;
         }
-        for (File f : files) {
-            String name = f.getName().toLowerCase();
-            if (name.endsWith(".html") || name.endsWith(".jsp")) {
-                String prefix = name.substring(0, name.lastIndexOf('.'));
-                name_all_js = prefix + "-all.js";
-                name_all_css = prefix + "-all.css";
+        Iterator<File> found;
+        if (recursive) {
+            found = discover();
+        } else {
+            ArrayList<File> top = new ArrayList<File>();
+            for (File f : files) {
+                if (isPage(f)) {
+                    top.add(f);
+                }
+            }
+            found = top.iterator();
+        }
+        if (!"none".equals(cache_dir)) {
+            disk = new DiskCache(io.getCanonicalFile(cache_dir), DISK_CACHE_LIMIT);
+        }
+        if (optimize || quality > 0) {
+            optimizer = new Images(disk, optimize, quality, max_size, min_saving);
+        }
+        if (incremental) {
+            manifest = new Manifest(new File(dst_dir.getParentFile(), dst_dir.getName() + ".manifest"),
+                    (all ? "-a" : "") + (sprite_max > 0 ? "-b" + sprite_max : "") + (dyn ? "-d" : "") + (critical ? "-f" : "") + (glyphs ? "-g" : "") + (optimize ? "-o" : "") +
+                    (inline_svg ? "-s" : "") + (unique ? "-u" : "") + (inline_max > 0 ? "-t" + inline_max : "") +
+                    (keep != null ? "-p" + Arrays.toString(keep) : "") +
+                    (quality > 0 ? "-q" + quality + "," + max_size + "," + min_saving : ""));
+        }
+        if (jobs > 1) {
+            pool = Executors.newFixedThreadPool(jobs);
+        }
+        try {
+            List<Embed> pages = build(found);
+            if (watch) {
+                watch(pages);
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static boolean isPage(File f) {
+        String name = f.getName().toLowerCase();
+        return (name.endsWith(".html") || name.endsWith(".jsp")) && io.isFile(f);
+    }
+
+    /** @return page to build or null if it is up to date */
+    private static Embed page(File f) {
+        Embed e = new Embed(f);
+        if ((all || critical) && (new File(f.getParentFile(), e.name_all_js).exists() ||
+                    new File(f.getParentFile(), e.name_all_css).exists())) {
+            System.err.println("Error: usage -a option prohibits files: " +
+                    e.name_all_js + " and " + e.name_all_css +
+                    " in the source directory");
+            System.exit(1);
+        }
+        if (manifest != null && manifest.isUpToDate(e.name)) {
+            System.err.println("up to date: " + e.src_file);
+            return null;
+        }
+        return e;
+    }
+
+    private static final File END = new File(""); // of discovered pages
+
+    /**
+     Walks src_dir (skipping dst_dir if it is inside) in a separate thread.
+     @return pages in the order they are found, available while the walk goes on
+    */
+    private static Iterator<File> discover() {
+        final LinkedBlockingQueue<File> queue = new LinkedBlockingQueue<File>();
+        Thread walker = new Thread(new Runnable() {
+            public void run() {
                 try {
-                    if (all &&
-                        (new File(src_dir, name_all_js).exists() || new File(src_dir, name_all_css).exists())) {
-                        System.err.println("Error: usage -a option prohibits files: " +
-                                name_all_js + " and " + name_all_css +
-                                " in the source directory");
-                        System.exit(1);
+                    Files.walkFileTree(src_dir.toPath(), new SimpleFileVisitor<Path>() {
+                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                            return dir.toFile().equals(dst_dir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                        }
+
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            if (attrs.isRegularFile() && isPage(file.toFile())) {
+                                queue.add(file.toFile());
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        public FileVisitResult visitFileFailed(Path file, IOException x) {
+                            System.err.println("WARNING: cannot read " + file + " " + x.getMessage());
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                } catch (IOException e) {
+                    System.err.println("WARNING: failed to walk " + src_dir + " " + e.getMessage());
+                } finally {
+                    queue.add(END);
+                }
+            }
+        }, "discover");
+        walker.setDaemon(true);
+        walker.start();
+        return new Iterator<File>() {
+            private File next;
+
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = queue.take();
+                    } catch (InterruptedException e) {
+                        throw new Error(e);
                     }
-                    if (all) {
-                        all_js = new File(dst_dir, name_all_js);
-                        all_css = new File(dst_dir, name_all_css);
+                }
+                return next != END;
+            }
+
+            public File next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                File f = next;
+                next = null;
+                return f;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     Builds pages as soon as they are found. With -j pages that are done are reported
+     in the order they have been found while the rest are still being built.
+     @return pages that have been built
+    */
+    private static List<Embed> build(Iterator<File> found) {
+        long time = System.nanoTime();
+        ArrayList<Embed> pages = new ArrayList<Embed>();
+        if (pool == null) {
+            while (found.hasNext()) {
+                Embed e = page(found.next());
+                if (e != null) {
+                    pages.add(call(e).flush());
+                }
+            }
+        } else {
+            LinkedList<Future<Embed>> done = new LinkedList<Future<Embed>>();
+            while (found.hasNext()) {
+                Embed e = page(found.next());
+                if (e != null) {
+                    done.add(pool.submit(e));
+                }
+                while (!done.isEmpty() && done.getFirst().isDone()) {
+                    pages.add(get(done.removeFirst()).flush());
+                }
+            }
+            for (Future<Embed> f : done) {
+                pages.add(get(f).flush()); // in submission order, so the output is the same as serial
+            }
+        }
+        if (manifest != null) {
+            manifest.save();
+        }
+        long gz = System.nanoTime();
+        if (gzip) {
+            gzip(pages);
+        }
+        gz = System.nanoTime() - gz;
+        if (compiled.misses() > 0) {
+            System.err.println("compressed: " + compiled.misses() + " misses, " + compiled.hits() + " hits, " +
+                    compiled.evictions() + " evictions, " + formatSize(compiled.size()) + " in memory");
+        }
+        if (report != null) {
+            ArrayList<Stats> stats = new ArrayList<Stats>(pages.size());
+            for (Embed e : pages) {
+                stats.add(e.stats);
+            }
+            report.save(stats, System.nanoTime() - time, gz, compiled);
+        }
+        return pages;
+    }
+
+    /** writes .gz next to every file written for the pages, in parallel, reported in page order */
+    private static void gzip(List<Embed> pages) {
+        LinkedHashSet<File> files = new LinkedHashSet<File>();
+        for (Embed e : pages) {
+            files.addAll(e.outputs);
+        }
+        ExecutorService workers = pool != null ? pool :
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            LinkedHashMap<File, Future<Long>> done = new LinkedHashMap<File, Future<Long>>();
+            for (final File f : files) {
+                done.put(f, workers.submit(new Callable<Long>() {
+                    public Long call() {
+                        return io.gzip(f);
                     }
-                    src_file = new File(dst_dir, f.getName());
-                    page.clear();
-                    embed(src_file, compress(f), all);
-                    if (all) {
-                        if (out_js != null) {
-                            out_js.close();
-                            out_js = null;
+                }));
+            }
+            long raw = 0;
+            long gz = 0;
+            for (Map.Entry<File, Future<Long>> e : done.entrySet()) {
+                long n = e.getKey().length();
+                long z = get(e.getValue());
+                raw += n;
+                gz += z < 0 ? n : z;
+                System.err.println("gzip: " + e.getKey() + " " + formatSize(n) + " -> " +
+                        (z < 0 ? "not smaller, skipped" : formatSize(z) + " (" + (z * 100 / Math.max(1, n)) + "%)"));
+            }
+            System.err.println("gzip: total " + formatSize(raw) + " -> " + formatSize(gz));
+        } finally {
+            if (workers != pool) {
+                workers.shutdown();
+            }
+        }
+    }
+
+    /**
+     Never returns. Rebuilds pages that embed any of the changed files, compressed and
+     encoded resources that did not change are kept in memory between the rebuilds.
+    */
+    private static void watch(List<Embed> pages) {
+        HashMap<String, Embed> built = new HashMap<String, Embed>();
+        HashMap<String, HashSet<String>> users = new HashMap<String, HashSet<String>>(); // file -> pages
+        for (Embed e : pages) {
+            index(built, users, e);
+        }
+        HashMap<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+        try {
+            WatchService ws = FileSystems.getDefault().newWatchService();
+            register(ws, dirs, src_dir.toPath());
+            System.err.println("watching " + src_dir + " for changes...");
+            for (;;) {
+                LinkedHashSet<String> changed = new LinkedHashSet<String>();
+                boolean overflow = false;
+                WatchKey k = ws.take();
+                while (k != null) {
+                    Path dir = dirs.get(k);
+                    for (WatchEvent<?> we : k.pollEvents()) {
+                        if (we.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                            overflow = true;
+                            continue;
                         }
-                        if (out_css != null) {
-                            out_css.close();
-                            out_css = null;
+                        Path p = dir.resolve((Path)we.context());
+                        if (we.kind() == StandardWatchEventKinds.ENTRY_CREATE &&
+                            Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                            register(ws, dirs, p);
                         }
+                        changed.add(io.getCanonicalPath(p.toFile()));
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    error(e.getMessage());
+                    if (!k.reset()) {
+                        dirs.remove(k);
+                    }
+                    k = ws.poll(50, TimeUnit.MILLISECONDS); // editors save in bursts
                 }
+                ArrayList<File> affected = new ArrayList<File>();
+                for (String name : affected(built, users, changed, overflow)) {
+                    File f = new File(src_dir, name);
+                    if (io.isFile(f)) {
+                        affected.add(f);
+                    }
+                }
+                if (!affected.isEmpty()) {
+                    site.clear();
+                    List<Embed> rebuilt = build(affected.iterator());
+                    for (Embed e : rebuilt) {
+                        index(built, users, e);
+                    }
+                    System.err.println("rebuilt " + rebuilt.size() + " page(s)");
+                }
+            }
+        } catch (IOException e) {
+            throw new Error(e);
+        } catch (InterruptedException e) {
+            throw new Error(e);
+        }
+    }
+
+    private static TreeSet<String> affected(HashMap<String, Embed> built, HashMap<String, HashSet<String>> users,
+                                            Set<String> changed, boolean overflow) {
+        String dst = io.getCanonicalPath(dst_dir) + File.separator;
+        TreeSet<String> names = new TreeSet<String>();
+        if (overflow) { // events lost, everything may have changed:
+            ArrayList<Future<DataUri>> uris = new ArrayList<Future<DataUri>>(cache.values());
+            ArrayList<Future<Sprites>> packed = new ArrayList<Future<Sprites>>(sprites.values());
+            compiled.clear();
+            reported.clear();
+            cache.clear();
+            copies.clear();
+            sheets.clear();
+            elements.clear();
+            sprites.clear();
+            sprited.clear();
+            for (Future<DataUri> d : uris) {
+                discard(d);
+            }
+            for (Future<Sprites> sp : packed) {
+                discardSprite(sp);
+            }
+            names.addAll(built.keySet());
+        }
+        for (String path : changed) {
+            if (path.startsWith(dst)) {
+                continue; // dst_dir inside src_dir
+            }
+            forget(path);
+            String include = included.get(path);
+            if (include != null) {
+                forget(include);
+            }
+            HashSet<String> u = users.get(path);
+            if (u != null) {
+                names.addAll(u);
+            }
+            File f = new File(path);
+            if ((recursive || src_dir.equals(f.getParentFile())) && isPage(f)) {
+                names.add(relative(f)); // new or modified page
+            }
+        }
+        return names;
+    }
+
+    private static void forget(String path) {
+        compiled.remove(path);
+        reported.remove(path);
+        discard(cache.remove(path));
+        for (Iterator<Map.Entry<String, Future<DataUri>>> k = cache.entrySet().iterator(); k.hasNext(); ) {
+            Map.Entry<String, Future<DataUri>> e = k.next();
+            if (e.getKey().startsWith(path + "[")) { // subsets of the font (see -g)
+                k.remove();
+                discard(e.getValue());
+            }
+        }
+        copies.remove(path);
+        sheets.remove(path);
+        elements.remove(path);
+        discardSprite(sprites.remove(path));
+        String css = sprited.remove(path);
+        if (css != null) {
+            discardSprite(sprites.remove(css));
+        }
+        if (manifest != null) {
+            manifest.forget(path);
+        }
+    }
+
+    /** deletes the temporary file (see io.temp) of the dropped data uri */
+    private static void discard(Future<DataUri> d) {
+        DataUri u = done(d);
+        if (u != null) {
+            discard(u.file);
+        }
+    }
+
+    /** deletes the dropped sprite and forgets its data uri */
+    private static void discardSprite(Future<Sprites> f) {
+        Sprites s = done(f);
+        if (s == null || s.png == null) {
+            return;
+        }
+        String path = io.getCanonicalPath(s.png);
+        String name = names.remove(path);
+        reported.remove(name != null ? name : path);
+        copies.remove(path);
+        discard(cache.remove(path));
+        discard(s.png);
+        File d = s.png.getParentFile(); // of its own (see io.named)
+        if (!d.delete() && d.exists()) {
+            System.err.println("WARNING: failed to delete " + d);
+        }
+    }
+
+    /** deletes temporary file f unless a data uri still in the cache is streamed from it (identical images) */
+    private static void discard(File f) {
+        if (!io.isTemp(f) || !f.exists()) {
+            return;
+        }
+        for (Future<DataUri> d : cache.values()) {
+            DataUri u = done(d);
+            if (u != null && u.file.equals(f)) {
+                return;
+            }
+        }
+        if (optimizer != null) {
+            optimizer.forget(f);
+        }
+        io.discard(f);
+    }
+
+    /** @return result of the finished task or null if it is still running, has failed or there is none */
+    private static <T> T done(Future<T> f) {
+        if (f == null || !f.isDone()) {
+            return null;
+        }
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new Error(e);
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static void index(HashMap<String, Embed> built, HashMap<String, HashSet<String>> users, Embed e) {
+        String name = e.name;
+        Embed previous = built.put(name, e);
+        if (previous != null) {
+            for (File f : previous.inputs) {
+                HashSet<String> u = users.get(io.getCanonicalPath(f));
+                if (u != null) {
+                    u.remove(name);
+                }
+            }
+        }
+        for (File f : e.inputs) {
+            String path = io.getCanonicalPath(f);
+            HashSet<String> u = users.get(path);
+            if (u == null) {
+                u = new HashSet<String>();
+                users.put(path, u);
             }
+            u.add(name);
         }
     }
 
-    private static void embed(File out, String s, boolean all) throws IOException {
-        s = stripComments(out, s); // IMPORTANT: strip comments before embedding
-        s = embedStyles(s, all);
-        s = embedScripts(s, all);
-        s = embedImages(s);
-        OutputStream os = new FileOutputStream(out);
+    private static void register(final WatchService ws, final HashMap<WatchKey, Path> dirs, Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dirs.put(dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static long parseNumber(String option, String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException x) {
+            error(option + " expects a number, got: " + s);
+            return 0;
+        }
+    }
+
+    private static Embed call(Embed e) {
+        try {
+            return e.call();
+        } catch (IOException x) {
+            x.printStackTrace();
+            error(x.getMessage());
+            return e;
+        }
+    }
+
+    public Embed call() throws IOException {
+        long time = System.nanoTime();
+        File dir = src_file.getParentFile();
+        if (!io.isDirectory(dir) && !dir.mkdirs() && !io.isDirectory(dir)) {
+            throw new IOException("failed to create " + dir);
+        }
+        boolean done = false;
+        try {
+            embed(src_file, compress(in), all);
+            if (out_js != null) {
+                out_js.close();
+                outputs.add(all_js);
+            }
+            if (out_css != null) {
+                out_css.close();
+                outputs.add(all_css);
+            }
+            outputs.add(src_file);
+            done = true;
+        } finally {
+            io.close(out_js);
+            io.close(out_css);
+            out_js = null;
+            out_css = null;
+            stats.enter(Stats.Phase.WRITE);
+            try {
+                for (Map.Entry<File, File> e : temps.entrySet()) {
+                    if (done) {
+                        io.move(e.getKey(), e.getValue());
+                    } else if (!e.getKey().delete()) {
+                        System.err.println("WARNING: failed to delete " + e.getKey());
+                    }
+                }
+            } finally {
+                stats.exit();
+            }
+            temps.clear();
+        }
+        if (manifest != null) {
+            hashes = manifest.hashes(inputs, outputs);
+        }
+        for (File f : inputs) {
+            if (!io.isIncludeFile(f) && io.isFile(f)) { // parts of include files are inputs too
+                stats.bytes_in += f.length();
+            }
+        }
+        for (File f : new LinkedHashSet<File>(outputs)) {
+            stats.bytes_out += f.length();
+        }
+        stats.time = System.nanoTime() - time;
+        return this;
+    }
+
+    private void embed(File out, String s, boolean all) throws IOException {
+        Writer w = create(out);
+        stats.enter(Stats.Phase.REWRITE);
         try {
-            os.write(s.getBytes("UTF8"));
+            // do not cripple already minified pages
+            boolean comments = !out.getName().toLowerCase().contains(".min.");
+            if (critical || keep != null || glyphs) {
+                dom = new Critical(s, keep, glyphs);
+                html = !glyphs ? null : comments ? COMMENT.matcher(s).replaceAll("") : s; // as scan() sees it
+            }
+            if (optimizer != null) {
+                prefetch(in, s, true);
+            }
+            scan(s, w, comments, true, all);
+            if (pending.length() > 0) { // scripts of the whole page are known now
+                int dropped = dom.prune(pending.toString(), out_css);
+                log.add("pruned " + formatSize(dropped) + " of unused rules from " + all_css);
+                pending.setLength(0);
+            }
+            if (all && !critical && out_css != null) {
+                define(out_css); // order of css rules does not matter for custom properties
+            }
+            shared(w, true);
         } finally {
-            os.close();
+            stats.exit();
+            w.close();
+            html = null;
+            families = null;
+            page_css.clear();
+        }
+    }
+
+    /** @return buffered UTF-8 writer to temporary file that replaces f when the page is done */
+    private Writer create(File f) throws IOException {
+        File t = io.sibling(f);
+        temps.put(t, f);
+        return new BufferedWriter(new OutputStreamWriter(stats.timed(new FileOutputStream(t)), "UTF8"), 64 * 1024);
+    }
+
+    /**
+     Single pass over the text written straight to w. Strips comments (if asked to) and replaces
+     &lt;link rel="stylesheet" .../&gt;, &lt;script ...&gt;&lt;/script&gt;, &lt;script .../&gt; (page only)
+     and &lt;img .../&gt; with embedded content as they are found.
+     Tags are matched as if by regex "&lt;tag([^&lt;]*)/&gt;" or "&lt;script([^&lt;]*)&lt;/script&gt;",
+     &lt;style&gt; blocks need no special treatment and are copied as text.
+     Comments are removed everywhere, including inside inline scripts and styles,
+     see: http://ostermiller.org/findcomment.html
+     There is actually no safe way to strip "//" comments considering something like:
+     return "//foo"; // bar "
+     or even more complicated situations.
+    */
+    void scan(String s, Writer w, boolean comments, boolean page, boolean all) throws IOException {
+        int n = s.length();
+        int i = 0; // s[i..p) has not been written yet
+        boolean html_comments = comments; // false when there are no more terminated comments
+        boolean c_comments = comments;
+        int p = 0;
+        while (p < n) {
+            char c = s.charAt(p);
+            int e = -1; // end of the comment or tag
+            boolean comment = false;
+            if (c == '/' && c_comments && s.startsWith("/*", p)) {
+                stats.enter(Stats.Phase.STRIP);
+                e = s.indexOf("*/", p + 2);
+                stats.exit();
+                c_comments = e >= 0;
+                e = e < 0 ? e : e + 2;
+                comment = true;
+            } else if (c != '<') {
+                // not interesting
+            } else if (html_comments && s.startsWith("<!--", p)) {
+                stats.enter(Stats.Phase.STRIP);
+                e = s.indexOf("-->", p + 4);
+                stats.exit();
+                html_comments = e >= 0;
+                e = e < 0 ? e : e + 3;
+                comment = true;
+            } else if (s.startsWith("<img", p)) {
+                e = tagEnd(s, p, 4);
+            } else if (page && s.startsWith("<link", p)) {
+                e = tagEnd(s, p, 5);
+            } else if (page && s.startsWith("<script", p)) {
+                int k = s.indexOf('<', p + 1);
+                e = k >= 0 && s.startsWith("</script>", k) ? k + 9 : tagEnd(s, p, 7);
+            } else if (page && (unique || sprite_max > 0) && (s.regionMatches(true, p, "</head>", 0, 7) ||
+                                          s.regionMatches(true, p, "</body>", 0, 7))) {
+                w.write(s, i, p - i);
+                i = p;
+                shared(w, Character.toLowerCase(s.charAt(p + 2)) == 'b');
+            }
+            if (e < 0) {
+                p++;
+                continue;
+            }
+            w.write(s, i, p - i);
+            i = p;
+            if (comment) {
+                stats.stripped += e - p;
+                i = p = e;
+            } else {
+                String tag = s.substring(p, e);
+                boolean embedded;
+                if (s.charAt(p + 1) == 'i') {
+                    embedded = embedImage(w, tag, page && unique);
+                } else if (s.charAt(p + 1) == 'l') {
+                    embedded = embedStyle(w, tag, all);
+                } else {
+                    embedded = embedScript(w, tag, all);
+                }
+                if (embedded) {
+                    i = p = e;
+                } else {
+                    p++; // keep the tag and continue scanning inside it
+                }
+            }
         }
+        w.write(s, i, n - i);
+    }
+
+    /** @return end of "&lt;tag([^&lt;]*)/&gt;" starting at p or -1 */
+    private static int tagEnd(String s, int p, int len) {
+        int k = s.indexOf('<', p + 1);
+        int e = s.lastIndexOf("/>", (k < 0 ? s.length() : k) - 2);
+        return e >= p + len ? e + 2 : -1;
     }
 
-    private static void warnCannotEmbed(File f) {
+    private void warnCannotEmbed(File f) {
         if (f != null && !f.getName().isEmpty()) {
-            System.err.println("WARNING: file " + f + " cannot be embedded.");
+            depend(f); // so that the page is rebuilt when the file appears
+            log.add("WARNING: file " + f + " cannot be embedded.");
         }
     }
 
@@ -140,135 +894,425 @@ public class Embed {
         System.exit(1);
     }
 
-    private static String embedScripts(String s, boolean all) throws IOException {
-        StringBuilder sb = new StringBuilder(BUFFER_SIZE);
-        Matcher m1 = Pattern.compile("<script([^<]*)/>").matcher(s);
-        Matcher m2 = Pattern.compile("<script([^<]*)</script>").matcher(s);
-        Matcher m;
-        if (m1.find() && m2.find()) {
-            m = m1.start() < m2.start() ? m1 : m2;
-        } else {
-            m = m1.find() ? m1 : m2;
+    private String compress(final File f) {
+        depend(f);
+        String n = f.getName().toLowerCase();
+        if (n.contains(".min.") || !(n.endsWith(".js") || n.endsWith(".css"))) {
+            stats.enter(Stats.Phase.READ);
+            try {
+                return new String(io.readFully(f)); // do not cripple already minified javascript
+            } finally {
+                stats.exit();
+            }
         }
-        m.reset();
-        int i = 0;
-        while (m.find(i)) {
-            String src = valueOf("src", m.group(0));
-            File f = locateFile(src);
-            if (io.isFile(f)) {
-                sb.append(s.substring(i, m.start()));
-                String c = compress(f);
-                if (all) {
-                    if (out_js == null) {
-                        out_js = new FileOutputStream(all_js);
-                        if (!dyn) {
-                            sb.append("\n<script type=\"text/javascript\" src=\"").append(name_all_js).append("\"></script>\n");
-                        }
-                    }
-                    out_js.write(embedImages(c).getBytes("UTF8"));
+        final String path = io.getCanonicalPath(f);
+        log.add(new Use(path, null, "compile: " + path));
+        long time = System.nanoTime();
+        stats.enter(Stats.Phase.COMPRESS);
+        stats.compressed++;
+        try {
+            return compiled.get(path, new Callable<String>() {
+                public String call() {
+                    stats.memo_misses++;
+                    return compile(f, stats);
+                }
+            });
+        } finally {
+            stats.exit();
+            stats.item(path, System.nanoTime() - time);
+        }
+    }
+
+    // YUICompressor command line defaults, shared by all compressed files:
+    private static final int LINE_BREAK = -1; // no line breaks
+    private static final boolean MUNGE = true;
+    private static final boolean VERBOSE = false;
+    private static final boolean PRESERVE_ALL_SEMICOLONS = false;
+    private static final boolean DISABLE_OPTIMIZATIONS = false;
+    // part of the disk cache key, bump compressor version when the library is updated:
+    private static final String OPTIONS = "yuicompressor-2.4.7 " + LINE_BREAK + " " + MUNGE + " " +
+            PRESERVE_ALL_SEMICOLONS + " " + DISABLE_OPTIMIZATIONS;
+
+    private static final ErrorReporter reporter = new ErrorReporter() {
+
+        public void warning(String message, String source, int line, String lineSource, int offset) {
+            System.err.println("[WARNING] " + source + (line < 0 ? "" : ":" + line + ":" + offset) + " " + message);
+        }
+
+        public void error(String message, String source, int line, String lineSource, int offset) {
+            System.err.println("[ERROR] " + source + (line < 0 ? "" : ":" + line + ":" + offset) + " " + message);
+        }
+
+        public EvaluatorException runtimeError(String message, String source, int line, String lineSource, int offset) {
+            error(message, source, line, lineSource, offset);
+            return new EvaluatorException(message, source, line, lineSource, offset);
+        }
+    };
+
+    /** content (or parts of the include file) is streamed to the hasher and the compressor */
+    static String compile(File f, Stats stats) {
+        try {
+            boolean css = f.getName().toLowerCase().endsWith(".css");
+            String key = null;
+            if (disk != null) {
+                stats.enter(Stats.Phase.READ);
+                InputStream is = io.open(f);
+                try {
+                    key = DiskCache.key((css ? "css " : "js ") + OPTIONS, is);
+                } finally {
+                    is.close();
+                    stats.exit();
+                }
+                String r = disk.get(key);
+                if (r != null) {
+                    stats.disk_hits++;
+                    return r;
+                }
+                stats.disk_misses++;
+            }
+            StringWriter out = new StringWriter(4096);
+            Reader in = new InputStreamReader(io.open(f), "UTF8");
+            try {
+                if (css) {
+                    new CssCompressor(in).compress(out, LINE_BREAK);
                 } else {
-                    sb.append("\n<script type=\"text/javascript\" >\n").append(c).append("\n</script>\n");
+                    new JavaScriptCompressor(in, reporter).compress(out, LINE_BREAK, MUNGE, VERBOSE,
+                            PRESERVE_ALL_SEMICOLONS, DISABLE_OPTIMIZATIONS);
                 }
+            } finally {
+                in.close();
+            }
+            String r = out.toString();
+            if (key != null) {
+                disk.put(key, r);
+            }
+            return r;
+        } catch (EvaluatorException e) {
+            error("failed to compress " + f + ": " + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    private boolean embedImage(Writer w, String tag, boolean shared) throws IOException {
+        File f = locateFile(valueOf("src", tag));
+        if (!f.isFile()) {
+            warnCannotEmbed(f);
+            return false;
+        }
+        if (inline_svg && Svg.isSvg(f) && (inline_max <= 0 || io.length(f) <= inline_max) && inlineSvg(w, f)) {
+            return true;
+        }
+        if (!shared) {
+            w.write("\n<img src=\"");
+            url(w, f);
+            w.write("\" />");
+        } else {
+            String path = io.getCanonicalPath(f);
+            Integer k = images.get(path);
+            if (k == null) {
+                images.put(path, k = images.size() + 1);
+                w.write("\n<img src=\"");
+                url(w, f);
+                w.write("\" data-embed=\"" + k + "\" />");
             } else {
-                warnCannotEmbed(f);
-                sb.append(s.substring(i, m.end()));
+                depend(f);
+                stats.asset(f);
+                repeated = true;
+                w.write("\n<img data-embed=\"" + k + "\" />");
             }
-            i = m.end();
         }
-        return i == 0 ? s : sb.append(s.substring(i, s.length())).toString();
+        return true;
     }
 
-    private static String compress(File f) {
-        String n = f.getName().toLowerCase();
-        if (n.contains(".min.") || !(n.endsWith(".js") || n.endsWith(".css"))) {
-            return new String(io.readFully(f)); // do not cripple already minified javascript
+    /** writes minified &lt;svg&gt; element of the image (see -s) @return false if it cannot be inlined */
+    private boolean inlineSvg(Writer w, final File f) throws IOException {
+        String path = io.getCanonicalPath(f);
+        long time = System.nanoTime();
+        String svg = memoize(elements, path, new Callable<String>() {
+            public String call() {
+                String e = Svg.element(Svg.minify(f));
+                return e == null ? "" : e;
+            }
+        });
+        if (svg.isEmpty()) {
+            return false;
         }
-        String b = f.getName().substring(0, f.getName().lastIndexOf('.'));
-        String x = f.getName().substring(f.getName().lastIndexOf('.'));
-        File t = new File(f.getParentFile(), b + ".min" + x);
-        if (t.exists()) {
-            error("file " + t + " already exists");
+        depend(f);
+        stats.asset(f);
+        log.add(new Use(path, formatSize(svg.length()), null));
+        w.write("\n");
+        w.write(svg);
+        stats.item(path, System.nanoTime() - time);
+        return true;
+    }
+
+    /** writes shared assets (see -u) that have been used but not defined yet */
+    private void shared(Writer w, boolean body) throws IOException {
+        if ((!all || critical) && defined < vars.size()) { // with -a definitions go to -all.css (-f: inline)
+            w.write("\n<style type=\"text/css\">\n");
+            define(w);
+            w.write("\n</style>\n");
         }
-        System.err.println("compile: " + io.getCanonicalPath(f));
-        String[] args = new String[]{/*"-v", */"--charset", "utf-8", "-o",
-                io.getCanonicalPath(t), io.getCanonicalPath(f)};
-        com.yahoo.platform.yui.compressor.YUICompressor.main(args);
-        String r = new String(io.readFully(t));
-        if (!t.delete()) {
-            error("failed to delete file " + t);
+        if (body && repeated) {
+            w.write("\n<script type=\"text/javascript\">(function(){" +
+                    "var a=document.querySelectorAll(\"img[data-embed]\"),s={},i,k;" +
+                    "for(i=0;i<a.length;i++){k=a[i].getAttribute(\"data-embed\");" +
+                    "if(a[i].getAttribute(\"src\")){s[k]=a[i].src}else{a[i].src=s[k]}}})();</script>\n");
+            repeated = false;
         }
-        return r;
     }
 
-    private static String stripComments(File f, String s) throws IOException {
-        if (f.getName().toLowerCase().contains(".min.")) {
-            return s; // do not cripple already minified javascript
+    private void define(Writer w) throws IOException {
+        if (defined < vars.size()) {
+            w.write(":root{");
+            for (; defined < vars.size(); defined++) {
+                w.write("--embed-" + (defined + 1) + ":");
+                cssUrl(w, vars.get(defined));
+                w.write(";");
+            }
+            w.write("}");
         }
-        // see: http://ostermiller.org/findcomment.html
-        return s.replaceAll("(<!--(?:.|[\\n\\r]|[\\n])*?-->)|" +
-                            "(/\\*(?:.|[\\n\\r]|[\\n])*?\\*/)", "");
-        // there is actually no safe way to strip "//" comment considering something like:
-        // return "//foo"; // bar "
-        // or even more complicated situations
     }
 
-    private static String embedImages(String s) throws IOException {
-        StringBuilder sb = new StringBuilder(BUFFER_SIZE);
-        int i = 0;
-        Matcher m = Pattern.compile("<img([^<]*)/>").matcher(s);
-        while (m.find(i)) {
-            String src = valueOf("src", m.group(0));
-            File f = locateFile(src);
-            if (f.isFile()) {
-                sb.append(s.substring(i, m.start()));
-                String c = base64EncodedFileForCss(f.getAbsolutePath());
-                sb.append("\n<img src=\"").append(c).append("\" />");
-            } else {
-                warnCannotEmbed(f);
-                sb.append(s.substring(i, m.end()));
+    /** @return index of the custom property that will be defined as url() of the file */
+    private int var(File f) {
+        String path = io.getCanonicalPath(f);
+        Integer k = var_index.get(path);
+        if (k == null) {
+            vars.add(f);
+            var_index.put(path, k = vars.size());
+        }
+        return k;
+    }
+
+    private static boolean inFontFace(String css, int pos) {
+        int at = css.lastIndexOf("@font-face", pos);
+        return at >= 0 && css.indexOf('}', at) > pos; // var() is not allowed in @font-face
+    }
+
+    private boolean embedScript(Writer w, String tag, boolean all) throws IOException {
+        File f = locateFile(valueOf("src", tag));
+        if (!io.isFile(f)) {
+            warnCannotEmbed(f);
+            return false;
+        }
+        String c = compress(f);
+        stats.asset(f);
+        if (keep != null) {
+            dom.script(c);
+        }
+        if (all) {
+            if (out_js == null) {
+                out_js = create(all_js);
+                if (!dyn) {
+                    w.write("\n<script type=\"text/javascript\" src=\"" + name_all_js + "\"></script>\n");
+                }
             }
-            i = m.end();
+            scan(c, out_js, false, false, false); // embed images
+        } else if (inline_max > 0 && c.length() > inline_max) {
+            StringWriter sw = new StringWriter(c.length());
+            scan(c, sw, false, false, false); // embed images
+            w.write("\n<script type=\"text/javascript\" src=\"" + copy(f, sw.toString()) + "\"></script>\n");
+        } else {
+            w.write("\n<script type=\"text/javascript\" >\n");
+            scan(c, w, false, false, false); // embed images
+            w.write("\n</script>\n");
         }
-        return i == 0 ? s : sb.append(s.substring(i, s.length())).toString();
+        return true;
     }
 
-    private static String embedStyles(String s, boolean all) throws IOException {
-        StringBuilder sb = new StringBuilder(BUFFER_SIZE);
-        Matcher m = Pattern.compile("<link([^<]*)/>").matcher(s);
-        int i = 0;
-        while (m.find(i)) {
-            String g = m.group(0);
-            // DO NOT embed rel="apple-touch..." links
-            String href = g.toLowerCase().contains("stylesheet") && g.toLowerCase().contains("rel=") ?
-                    valueOf("href", g) : null;
-            File f = locateFile(href);
-            if (f.isFile()) {
-                sb.append(s.substring(i, m.start()));
-                String c = compress(f);
-                // data uri can have "//" thus strip comment before not after
-                c = encodeDataUris(f, c);
-                if (all) {
-                    if (out_css == null) {
-                        out_css = new FileOutputStream(all_css);
-                        if (!dyn) {
-                            sb.append("\n<link rel=\"stylesheet\" href=\"").append(name_all_css).append("\" />\n");
-                        }
+    private boolean embedStyle(Writer w, String tag, boolean all) throws IOException {
+        // DO NOT embed rel="apple-touch..." links
+        String lc = tag.toLowerCase();
+        String href = lc.contains("stylesheet") && lc.contains("rel=") ? valueOf("href", tag) : null;
+        File f = locateFile(href);
+        if (!f.isFile()) {
+            warnCannotEmbed(f);
+            return false;
+        }
+        String c = compress(f);
+        stats.asset(f);
+        // data uri can have "//" thus strip comment before not after
+        if (critical) {
+            StringWriter sw = new StringWriter(c.length());
+            style(f, c, sw, false);
+            StringWriter inline = new StringWriter(sw.getBuffer().length());
+            StringBuilder rest = new StringBuilder(sw.getBuffer().length());
+            dom.split(sw.toString(), inline, rest);
+            if (inline.getBuffer().length() > 0) {
+                w.write("\n<style type=\"text/css\">\n");
+                w.write(inline.toString());
+                w.write("\n</style>\n");
+            }
+            if (rest.length() > 0) {
+                if (out_css == null) {
+                    out_css = create(all_css);
+                    if (!dyn) {
+                        w.write("\n<link rel=\"preload\" href=\"" + name_all_css + "\" as=\"style\" " +
+                                "onload=\"this.onload=null;this.rel='stylesheet'\" />\n" +
+                                "<noscript><link rel=\"stylesheet\" href=\"" + name_all_css + "\" /></noscript>\n");
                     }
-                    out_css.write(c.getBytes("UTF8"));
+                }
+                if (keep != null) {
+                    pending.append(rest);
                 } else {
-                    sb.append("\n<style type=\"text/css\">\n").append(c).append("\n</style>\n");
+                    out_css.write(rest.toString());
+                }
+            }
+        } else if (all) {
+            if (out_css == null) {
+                out_css = create(all_css);
+                if (!dyn) {
+                    w.write("\n<link rel=\"stylesheet\" href=\"" + name_all_css + "\" />\n");
                 }
+            }
+            if (keep != null) {
+                StringWriter sw = new StringWriter(c.length());
+                style(f, c, sw, false);
+                pending.append(sw.getBuffer());
             } else {
-                warnCannotEmbed(f);
-                sb.append(s.substring(i, m.end()));
+                style(f, c, out_css, false);
             }
-            i = m.end();
+        } else if (inline_max > 0 && c.length() > inline_max) {
+            StringWriter sw = new StringWriter(c.length());
+            assets = ""; // url() in the copy resolve against dst_dir, not the page
+            try {
+                style(f, c, sw, false);
+            } finally {
+                assets = root;
+            }
+            w.write("\n<link rel=\"stylesheet\" href=\"" + copy(f, sw.toString()) + "\" />\n");
+        } else {
+            w.write("\n<style type=\"text/css\">\n");
+            style(f, c, w, false);
+            w.write("\n</style>\n");
+        }
+        return true;
+    }
+
+    // @import url("a.css") media; or @import "a.css" media;
+    private static final Pattern IMPORT = Pattern.compile(
+            "@import\\s*(?:url\\(\\s*(['\"]?)([^'\")]*)\\1\\s*\\)|(['\"])([^'\"]*)\\3)\\s*([^;{}]*);");
+    private static final Pattern CHARSET = Pattern.compile("^\\s*@charset\\s*(['\"])[^'\"]*\\1\\s*;");
+
+    /** @import rules of the stylesheet, found once per run */
+    private static class Sheet {
+        final int charset; // end of leading @charset rule or 0
+        final ArrayList<int[]> imports = new ArrayList<int[]>(); // {start, end} of the rule
+        final ArrayList<File> files = new ArrayList<File>(); // null if cannot be inlined (remote, layer...)
+        final ArrayList<String> media = new ArrayList<String>();
+
+        Sheet(File css, String s) {
+            Matcher m = CHARSET.matcher(s);
+            charset = m.find() ? m.end() : 0;
+            m = IMPORT.matcher(s);
+            while (m.find()) {
+                String url = m.group(2) != null ? m.group(2) : m.group(4);
+                String q = m.group(5).trim();
+                File f = locateFile(css.getParentFile(), url);
+                boolean inline = !q.startsWith("layer") && !q.startsWith("supports(") && f.isFile() &&
+                        f.getName().toLowerCase().endsWith(".css");
+                imports.add(new int[]{m.start(), m.end()});
+                files.add(inline ? io.getCanonicalFile(f) : null);
+                media.add(q);
+            }
+        }
+    }
+
+    /**
+     Writes the compressed stylesheet with its @import rules replaced by the imported sheets
+     (compressed, url() resolved against their own directory, imports inlined recursively,
+     wrapped in @media when the import has media queries). Import cycles are reported and broken.
+     Rules that cannot be inlined are moved in front of the top level sheet, because @import
+     is ignored after any other rule.
+    */
+    private void style(final File f, final String c, Writer w, boolean imported) throws IOException {
+        Sheet sheet = memoize(sheets, io.getCanonicalPath(f), new Callable<Sheet>() {
+            public Sheet call() {
+                return new Sheet(f, c);
+            }
+        });
+        if (optimizer != null) {
+            prefetch(f, c, false);
+        }
+        Sprites sprite = sprite_max > 0 ? sprite(f, c) : null;
+        importing.add(io.getCanonicalPath(f));
+        try {
+            int i = imported ? sheet.charset : 0; // @charset is only allowed at the very start
+            if (!imported) {
+                if (sheet.charset > 0 && !sheet.imports.isEmpty()) {
+                    w.write(c, 0, sheet.charset);
+                    i = sheet.charset;
+                }
+                for (int k = 0; k < sheet.imports.size(); k++) {
+                    if (sheet.files.get(k) == null) {
+                        int[] rule = sheet.imports.get(k);
+                        w.write(c, rule[0], rule[1] - rule[0]);
+                    }
+                }
+            }
+            for (int k = 0; k < sheet.imports.size(); k++) {
+                int[] rule = sheet.imports.get(k);
+                File g = sheet.files.get(k);
+                encodeDataUris(f, c.substring(i, rule[0]), sprite, w);
+                if (g == null) {
+                    if (imported) {
+                        log.add("WARNING: " + c.substring(rule[0], rule[1]) + " in " + f +
+                                " cannot be inlined and follows other rules");
+                        w.write(c, rule[0], rule[1] - rule[0]);
+                    }
+                } else if (importing.contains(io.getCanonicalPath(g))) {
+                    log.add("WARNING: " + f + " import cycle: " + g + " is already being imported, @import dropped");
+                } else {
+                    String media = sheet.media.get(k);
+                    String gc = compress(g);
+                    stats.asset(g);
+                    if (!media.isEmpty()) {
+                        w.write("@media " + media + "{");
+                    }
+                    style(g, gc, w, true);
+                    if (!media.isEmpty()) {
+                        w.write("}");
+                    }
+                }
+                i = rule[1];
+            }
+            encodeDataUris(f, i == 0 ? c : c.substring(i), sprite, w);
+        } finally {
+            importing.remove(io.getCanonicalPath(f));
         }
-        return i == 0 ? s : sb.append(s.substring(i, s.length())).toString();
     }
 
 
-    private static String valueOf(String attr, String s) {
+    /** @return sprite of the small background images of the stylesheet (see -b) */
+    private static Sprites sprite(final File f, final String c) {
+        final String path = io.getCanonicalPath(f);
+        return memoize(sprites, path, new Callable<Sprites>() {
+            public Sprites call() throws IOException {
+                LinkedHashMap<String, File> images = new LinkedHashMap<String, File>();
+                for (String url : Sprites.urls(c)) {
+                    File g = locateFile(f.getParentFile(), url);
+                    if (io.isFile(g) && Sprites.isSpritable(g) && (inline_max <= 0 || io.length(g) <= inline_max)) {
+                        images.put(url, io.getCanonicalFile(g));
+                    }
+                }
+                String name = f.getName();
+                name = name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+                Sprites s = Sprites.pack(name + "-sprite.png", images, sprite_max);
+                for (File g : s.images.values()) {
+                    sprited.put(io.getCanonicalPath(g), path);
+                }
+                if (s.png != null) { // the same on every run, unlike the temporary file
+                    names.put(io.getCanonicalPath(s.png), new File(new File(path).getParentFile(), s.png.getName()).getPath());
+                }
+                return s;
+            }
+        });
+    }
+
+    static String valueOf(String attr, String s) {
         String lc = s.toLowerCase();
         String a = (attr + '=').toLowerCase();
         int start = lc.indexOf(a);
@@ -310,30 +1354,68 @@ public class Embed {
         return new File("");
     }
 
-    private static File locateFile(String fn) {
-        File f = locateFile(null, fn);
+    /** @return file referenced from the page: relative to the page directory or src_dir */
+    File locateFile(String fn) {
+        File f = locateFile(in.getParentFile(), fn);
         return io.isFile(f) ? io.getCanonicalFile(f) : f;
     }
 
-    private static String encodeDataUris(File css, String s) {
-        StringBuilder sb = new StringBuilder(BUFFER_SIZE);
-        Matcher m = Pattern.compile("url\\(([^)]*)\\)").matcher(s);
+    private static final Pattern URL = Pattern.compile("url\\(([^)]*)\\)");
+    private static final Pattern IMG = Pattern.compile("(?i)<img\\b[^<]*/>");
+
+    /**
+     Starts optimizing images the page (&lt;img&gt; tags) or the stylesheet (url()) is going
+     to embed, so that they are encoded in parallel while the text is processed in order.
+    */
+    private void prefetch(File base, String s, boolean page) {
+        Matcher m = (page ? IMG : URL).matcher(s);
+        while (m.find()) {
+            File f = page ? locateFile(valueOf("src", m.group())) : locateFile(base.getParentFile(), m.group(1));
+            if (io.isFile(f) && optimizer.isOptimizable(f) && (inline_max <= 0 || io.length(f) <= inline_max) &&
+                !cache.containsKey(io.getCanonicalPath(f))) {
+                optimizer.prefetch(f);
+            }
+        }
+    }
+
+    void encodeDataUris(File css, String s, Writer w) throws IOException {
+        encodeDataUris(css, s, null, w);
+    }
+
+    private void encodeDataUris(File css, String s, Sprites sprite, Writer w) throws IOException {
+        if (sprite != null && sprite.png != null) {
+            String path = io.getCanonicalPath(sprite.png);
+            Integer k = var_index.get(path);
+            String t = sprite.rewrite(s, "var(--embed-" + (k != null ? k : vars.size() + 1) + ")");
+            if (t != s) {
+                var(sprite.png);
+                for (File f : sprite.images.values()) {
+                    depend(f);
+                }
+                log.add(new Use(shown(path), null, "packed " + sprite.images.size() + " images of " + io.getCanonicalPath(css) +
+                        " into " + sprite.width + "x" + sprite.height + " sprite size " + formatSize(io.length(sprite.png))));
+                s = t;
+            }
+        }
+        Matcher m = URL.matcher(s);
         int i = 0;
         while (m.find(i)) {
             String fn = m.group(0);
             fn = fn.substring(4, fn.length() - 1);
             File f = locateFile(css.getParentFile(), fn);
-            if (f.isFile()) {
-                sb.append(s.substring(i, m.start()));
-                String c = "url(" + base64EncodedFileForCss(f.getAbsolutePath()) + ")";
-                sb.append(c);
+            if (f.isFile() && unique && !inFontFace(s, m.start())) {
+                w.write(s, i, m.start() - i);
+                w.write("var(--embed-" + var(f) + ")");
+            } else if (f.isFile()) {
+                w.write(s, i, m.start() - i);
+                cssUrl(w, f);
             } else {
                 warnCannotEmbed(f);
-                sb.append(s.substring(i, m.end()));
+                w.write(s, i, m.end() - i);
             }
             i = m.end();
         }
-        return i == 0 ? s : sb.append(s.substring(i, s.length())).toString();
+        w.write(s, i, s.length() - i);
     }
 
     private static String unquote(String s) {
@@ -347,31 +1429,325 @@ public class Embed {
         return s;
     }
 
-    private static HashMap<String, String> cache = new HashMap<String, String>(256);
-    private static HashMap<String, String> site  = new HashMap<String, String>(256);
-    private static HashSet<String> page  = new HashSet<String>(256);
-
-    private static String base64EncodedFileForCss(String path) {
-        path = io.getCanonicalPath(path);
-        String r = cache.get(path);
-        if (r == null) {
-            File f = io.getCanonicalFile(path);
-            byte[] bytes = io.readFully(f);
-            System.err.println("embedded " + path + " size " + formatSize(f.length()));
-            String mime = io.getMimeTypeFromFilename(f.getName());
-            r = "data:" + mime + ";base64," + Base64.encode(bytes);
-            cache.put(path, r);
-            page.add(path);
-            site.put(path, src_file.getAbsolutePath());
-        } else {
-            if (page.contains(path)) {
-                System.err.println("WARNING: duplicate resource " + path + " in " + src_file);
+    // shared by all pages; each resource is compressed or encoded exactly once per run:
+    private static Memo compiled = new Memo(64L * 1024 * 1024); // see -m
+    private static final ConcurrentHashMap<String, Future<DataUri>> cache =
+            new ConcurrentHashMap<String, Future<DataUri>>(256);
+    // only touched from flush() which is always called from main thread in page order:
+    private static final HashMap<String, String> site  = new HashMap<String, String>(256);
+    private static final HashSet<String> reported = new HashSet<String>(256);
+    // asset larger than -t threshold -> name of its content hashed copy in dst_dir:
+    private static final ConcurrentHashMap<String, Future<String>> copies =
+            new ConcurrentHashMap<String, Future<String>>(256);
+    // part of include file -> include file (both canonical):
+    private static final ConcurrentHashMap<String, String> included = new ConcurrentHashMap<String, String>();
+    // svg image -> minified <svg> element or "" if it cannot be inlined (see -s):
+    private static final ConcurrentHashMap<String, Future<String>> elements = new ConcurrentHashMap<String, Future<String>>();
+    // stylesheet -> its @import rules:
+    private static final ConcurrentHashMap<String, Future<Sheet>> sheets = new ConcurrentHashMap<String, Future<Sheet>>(256);
+    // stylesheet -> sprite of its small background images (see -b):
+    private static final ConcurrentHashMap<String, Future<Sprites>> sprites = new ConcurrentHashMap<String, Future<Sprites>>();
+    // image packed into a sprite -> its stylesheet (both canonical):
+    private static final ConcurrentHashMap<String, String> sprited = new ConcurrentHashMap<String, String>();
+    // sprite -> the name it is reported as, next to its stylesheet (see shown):
+    private static final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+    /** use of a resource reported by flush(): compiled or copied once per run, embedded per page */
+    private static class Use {
+        final String path;
+        final String size; // of embedded resource
+        final String once; // message for compiled or copied resource
+
+        Use(String path, String size, String once) {
+            this.path = path;
+            this.size = size;
+            this.once = once;
+        }
+    }
+
+    private static <T> T memoize(ConcurrentHashMap<String, Future<T>> map, String key, Callable<T> c) {
+        Future<T> f = map.get(key);
+        if (f == null) {
+            FutureTask<T> t = new FutureTask<T>(c);
+            f = map.putIfAbsent(key, t);
+            if (f == null) {
+                f = t;
+                t.run();
+            }
+        }
+        return get(f);
+    }
+
+    private static <T> T get(Future<T> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new Error(e);
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof Error) {
+                throw (Error)c;
+            }
+            if (c instanceof IOException) {
+                c.printStackTrace();
+                error(c.getMessage());
+            }
+            throw new Error(c);
+        }
+    }
+
+    /** writes css url() of the file, quoted for svg: its data uri may have spaces, quotes and parentheses */
+    private void cssUrl(Writer w, File f) throws IOException {
+        String q = Svg.isSvg(f) ? "\"" : "";
+        w.write("url(" + q);
+        url(w, f);
+        w.write(q + ")");
+    }
+
+    /** writes data uri of the file or, if it is larger than -t threshold, name of its copy in dst_dir */
+    private void url(Writer w, File f) throws IOException {
+        final File c = io.getCanonicalFile(f);
+        stats.asset(c);
+        long length = io.length(c);
+        if (inline_max <= 0 || length <= inline_max) {
+            base64EncodedFileForCss(w, c.getAbsolutePath());
+            return;
+        }
+        String path = io.getCanonicalPath(c);
+        depend(c);
+        long time = System.nanoTime();
+        stats.enter(Stats.Phase.WRITE);
+        String name;
+        try {
+            name = memoize(copies, path, new Callable<String>() {
+                public String call() throws IOException {
+                    InputStream is = io.open(c);
+                    String hash;
+                    try {
+                        hash = io.sha256(is);
+                    } finally {
+                        is.close();
+                    }
+                    String name = hashed(c.getName(), hash);
+                    File to = new File(dst_dir, name);
+                    if (!io.isFile(to)) {
+                        io.copy(c, to);
+                    }
+                    return name;
+                }
+            });
+        } finally {
+            stats.exit();
+            stats.item(shown(path), System.nanoTime() - time);
+        }
+        log.add(new Use(shown(path), null, "copied " + shown(path) + " to " + name + " size " + formatSize(length)));
+        outputs.add(new File(dst_dir, name));
+        w.write(assets + name);
+    }
+
+    /** writes processed script or stylesheet to dst_dir under content hashed name @return reference to it from the page */
+    private String copy(File f, String content) throws IOException {
+        byte[] bytes = content.getBytes("UTF8");
+        String name = hashed(f.getName(), io.sha256(new ByteArrayInputStream(bytes)));
+        File to = new File(dst_dir, name);
+        if (!io.isFile(to)) {
+            stats.enter(Stats.Phase.WRITE);
+            try {
+                io.write(to, bytes);
+            } finally {
+                stats.exit();
+            }
+        }
+        // keyed by the copy: the source itself is already reported once as compiled
+        log.add(new Use(io.getCanonicalPath(to), null,
+                "copied " + io.getCanonicalPath(f) + " to " + name + " size " + formatSize(bytes.length)));
+        outputs.add(to);
+        return root + name;
+    }
+
+    /** "name.ext" -&gt; "name.&lt;hash&gt;.ext" */
+    private static String hashed(String name, String hash) {
+        int dot = name.lastIndexOf('.');
+        String h = hash.substring(0, 16);
+        return dot <= 0 ? name + "." + h : name.substring(0, dot) + "." + h + name.substring(dot);
+    }
+
+    /** data uri is not kept in memory, only what is needed to stream it again */
+    private static class DataUri {
+        final File file;
+        final String prefix; // "data:<mime>;base64," or "data:image/svg+xml," followed by file content as is
+        final long length;
+
+        DataUri(File file, String prefix, long length) {
+            this.file = file;
+            this.prefix = prefix;
+            this.length = length;
+        }
+
+        boolean isBase64() {
+            return prefix.endsWith(";base64,");
+        }
+    }
+
+    private static final Pattern COMMENT = Pattern.compile("(?s)<!--.*?-->");
+    private static final Pattern RESOURCE = Pattern.compile(
+            "(?is)<link\\b[^>]*>|<script\\b[^>]*>|<style\\b[^>]*>(.*?)</style\\s*>");
+
+    /** @return code points the page may render with the font or null if the page does not declare it (see -g) */
+    private int[] glyphs(File font) throws IOException {
+        if (families == null) { // first font of the page: find all stylesheets and scripts
+            families = new HashMap<String, String>();
+            Matcher m = RESOURCE.matcher(html);
+            while (m.find()) {
+                String tag = m.group().toLowerCase();
+                if (m.group(1) != null) {
+                    fonts(in, m.group(1), new HashSet<String>());
+                } else if (tag.startsWith("<link") && tag.contains("stylesheet")) {
+                    File f = locateFile(valueOf("href", m.group()));
+                    if (io.isFile(f)) {
+                        fonts(f, compress(f), new HashSet<String>());
+                    }
+                } else if (tag.startsWith("<script") && valueOf("src", m.group()) != null) {
+                    File f = locateFile(valueOf("src", m.group()));
+                    if (io.isFile(f)) {
+                        dom.script(compress(f));
+                    }
+                }
+            }
+        }
+        String family = families.get(io.getCanonicalPath(font));
+        return family == null ? null : dom.chars(family, page_css);
+    }
+
+    /** collects stylesheet, its imports and fonts declared in them */
+    private void fonts(final File f, final String c, HashSet<String> seen) {
+        if (!seen.add(io.getCanonicalPath(f))) {
+            return;
+        }
+        page_css.add(c);
+        for (Map.Entry<String, List<String>> e : Critical.fonts(c).entrySet()) {
+            for (String url : e.getValue()) {
+                File font = locateFile(f.getParentFile(), url);
+                if (io.isFile(font)) {
+                    families.put(io.getCanonicalPath(font), e.getKey());
+                }
+            }
+        }
+        if (f != in) {
+            Sheet sheet = memoize(sheets, io.getCanonicalPath(f), new Callable<Sheet>() {
+                public Sheet call() {
+                    return new Sheet(f, c);
+                }
+            });
+            for (File g : sheet.files) {
+                if (g != null) {
+                    fonts(g, compress(g), seen);
+                }
+            }
+        }
+    }
+
+    void base64EncodedFileForCss(Writer w, String path) throws IOException {
+        final String p = io.getCanonicalPath(path);
+        final File f = io.getCanonicalFile(p);
+        depend(f);
+        final int[] chars = glyphs && Fonts.isFont(f) ? glyphs(f) : null;
+        DataUri d = memoize(cache, chars == null ? p : p + Arrays.toString(chars), new Callable<DataUri>() {
+            public DataUri call() throws IOException {
+                if (chars != null) {
+                    byte[] subset = Fonts.subset(f, chars);
+                    if (subset != null) {
+                        return new DataUri(io.temp(".ttf", subset),
+                                "data:" + io.getMimeTypeFromFilename(f.getName()) + ";base64,", subset.length);
+                    }
+                }
+                if (Svg.isSvg(f)) {
+                    String uri = Svg.uri(Svg.minify(f)); // ASCII
+                    int comma = uri.indexOf(',') + 1;
+                    File t = io.temp(".svg", uri.substring(comma).getBytes("US-ASCII"));
+                    return new DataUri(t, uri.substring(0, comma), uri.length() - comma);
+                }
+                File o = optimizer != null && optimizer.isOptimizable(f) ? optimizer.optimize(f) : f;
+                String mime = io.getMimeTypeFromFilename(o.getName());
+                return new DataUri(o, "data:" + mime + ";base64,", io.length(o));
+            }
+        });
+        if (chars != null && !d.file.equals(f)) {
+            log.add("subset " + p + " to " + chars.length + " characters " +
+                    formatSize(io.length(f)) + " -> " + formatSize(d.length));
+        } else if (!d.file.equals(f)) {
+            log.add(new Use(shown(p), null, (d.isBase64() ? "optimized " : "minified ") + shown(p) + " " +
+                    formatSize(io.length(f)) + " -> " + formatSize(d.length)));
+        }
+        log.add(new Use(shown(p), formatSize(d.length), null));
+        long time = System.nanoTime();
+        stats.enter(Stats.Phase.BASE64);
+        try {
+            w.write(d.prefix);
+            if (d.isBase64()) {
+                InputStream is = io.open(d.file);
+                try {
+                    io.base64(is, w);
+                } finally {
+                    is.close();
+                }
+            } else {
+                w.write(new String(io.readFully(d.file), "US-ASCII"));
+            }
+        } finally {
+            stats.exit();
+            stats.item(shown(p), System.nanoTime() - time);
+        }
+    }
+
+    /** @return path the file is reported as: sprites are named after their stylesheet, not their temporary file */
+    private static String shown(String path) {
+        String name = names.get(path);
+        return name != null ? name : path;
+    }
+
+    /** prints messages collected while processing the page exactly as a serial run would */
+    private Embed flush() {
+        HashSet<String> page = new HashSet<String>(256);
+        for (Object o : log) {
+            if (!(o instanceof Use)) {
+                System.err.println(o);
+            } else if (((Use)o).once != null) {
+                if (reported.add(((Use)o).path)) {
+                    System.err.println(((Use)o).once);
+                }
             } else {
-                System.err.println("WARNING: while processing " + src_file +
-                        " embedded " + path + " that has been already used in " + site.get(path));
+                String path = ((Use)o).path;
+                if (!site.containsKey(path)) {
+                    System.err.println("embedded " + path + " size " + ((Use)o).size);
+                    page.add(path);
+                    site.put(path, src_file.getAbsolutePath());
+                } else if (page.contains(path)) {
+                    System.err.println("WARNING: duplicate resource " + path + " in " + src_file);
+                } else {
+                    System.err.println("WARNING: while processing " + src_file +
+                            " embedded " + path + " that has been already used in " + site.get(path));
+                }
+            }
+        }
+        log.clear();
+        if (manifest != null) {
+            manifest.put(name, hashes);
+        }
+        return this;
+    }
+
+    private void depend(File f) {
+        if (io.isTemp(f)) {
+            return; // sprites depend on their images
+        }
+        inputs.add(f);
+        if (io.isIncludeFile(f) && io.isFile(f)) {
+            for (File part : io.parts(f)) {
+                inputs.add(part);
+                included.put(io.getCanonicalPath(part), io.getCanonicalPath(f));
             }
         }
-        return r;
     }
 
     private static String formatSize(long length) {
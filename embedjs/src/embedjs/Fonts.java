@@ -0,0 +1,430 @@
+package embedjs;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ Glyph subsetting of TrueType fonts (see -g). The subset keeps glyph 0 (.notdef), glyphs
+ of the requested characters and components of composite glyphs, renumbered in that
+ order, with rebuilt cmap, glyf, loca and hmtx and updated head, hhea and maxp; post
+ loses glyph names. Tables indexed by glyph number that are not rebuilt (kerning,
+ OpenType layout, device metrics, vertical metrics) and signatures are dropped, so
+ ligatures and kerning are lost. Fonts without TrueType outlines (CFF), collections
+ and compressed fonts are not subset.
+*/
+
+public class Fonts {
+
+    private static final int GLYF_WORDS = 0x0001; // composite glyph flags
+    private static final int GLYF_SCALE = 0x0008;
+    private static final int GLYF_MORE = 0x0020;
+    private static final int GLYF_XY_SCALE = 0x0040;
+    private static final int GLYF_2X2 = 0x0080;
+    private static final List<String> KEEP = Arrays.asList(
+            "OS/2", "cmap", "cvt ", "fpgm", "gasp", "glyf", "head", "hhea", "hmtx", "loca", "maxp", "name", "post", "prep");
+
+    public static boolean isFont(File f) {
+        String n = f.getName().toLowerCase();
+        return n.endsWith(".ttf") || n.endsWith(".otf");
+    }
+
+    /** @return subset of the font with glyphs of the code points or null if it cannot be subset */
+    public static byte[] subset(File f, int[] chars) throws IOException {
+        byte[] b = io.readFully(f);
+        if (b.length < 12 || u32(b, 0) != 0x00010000 && u32(b, 0) != 0x74727565) { // 'true'
+            return null;
+        }
+        TreeMap<String, int[]> tables = new TreeMap<String, int[]>(); // tag -> {offset, length}
+        int n = u16(b, 4);
+        if (12 + n * 16 > b.length) {
+            return null; // truncated table directory
+        }
+        for (int i = 0; i < n; i++) {
+            int r = 12 + i * 16;
+            long offset = u32(b, r + 8);
+            long length = u32(b, r + 12);
+            if (offset + length > b.length) {
+                return null;
+            }
+            tables.put(new String(b, r, 4, "ISO-8859-1"), new int[]{(int)offset, (int)length});
+        }
+        // every offset read below is checked against the table it comes from:
+        String[] required = {"cmap", "glyf", "head", "hhea", "hmtx", "loca", "maxp"};
+        int[] min = {4, 0, 54, 36, 0, 0, 6};
+        for (int i = 0; i < required.length; i++) {
+            if (!tables.containsKey(required[i]) || tables.get(required[i])[1] < min[i]) {
+                return null;
+            }
+        }
+        int head = tables.get("head")[0];
+        int hhea = tables.get("hhea")[0];
+        int glyf = tables.get("glyf")[0];
+        int hmtx = tables.get("hmtx")[0];
+        int glyphs = u16(b, tables.get("maxp")[0] + 4);
+        boolean long_loca = u16(b, head + 50) != 0;
+        int metrics = u16(b, hhea + 34);
+        if (glyphs == 0 || metrics == 0 || metrics > glyphs ||
+            tables.get("hmtx")[1] < metrics * 4 + (glyphs - metrics) * 2) {
+            return null;
+        }
+        int[] locations = locations(b, tables.get("loca"), glyphs, long_loca, tables.get("glyf")[1]);
+        int[] cmap = new int[2]; // platform, encoding
+        TreeMap<Integer, Integer> codes = cmap(b, tables.get("cmap"), cmap);
+        if (codes == null || locations == null) {
+            return null;
+        }
+        // glyph order of the subset: .notdef, glyphs of requested chars, components
+        boolean symbol = cmap[0] == 3 && cmap[1] == 0;
+        HashSet<Integer> wanted = new HashSet<Integer>();
+        for (int c : chars) {
+            wanted.add(c);
+            if (symbol && c <= 0xFF) {
+                wanted.add(0xF000 + c); // symbol fonts map U+0020..U+00FF at U+F020..U+F0FF
+            }
+        }
+        LinkedHashMap<Integer, Integer> order = new LinkedHashMap<Integer, Integer>(); // old -> new glyph
+        order.put(0, 0);
+        TreeMap<Integer, Integer> kept = new TreeMap<Integer, Integer>(); // code -> old glyph
+        for (Map.Entry<Integer, Integer> e : codes.entrySet()) {
+            if (wanted.contains(e.getKey()) && e.getValue() < glyphs) {
+                kept.put(e.getKey(), e.getValue());
+                if (!order.containsKey(e.getValue())) {
+                    order.put(e.getValue(), order.size());
+                }
+            }
+        }
+        ArrayList<Integer> pending = new ArrayList<Integer>(order.keySet());
+        for (int i = 0; i < pending.size(); i++) {
+            int g = pending.get(i);
+            int at = glyf + locations[g];
+            int end = glyf + locations[g + 1];
+            if (end - at >= 10 && (short)u16(b, at) < 0) { // composite
+                for (int k : components(b, at + 10, end)) {
+                    int c = u16(b, k);
+                    if (c < glyphs && !order.containsKey(c)) {
+                        order.put(c, order.size());
+                        pending.add(c);
+                    }
+                }
+            }
+        }
+        if (order.size() >= glyphs) {
+            return null; // nothing to drop
+        }
+        // glyf and loca, glyphs padded to 4 bytes
+        ByteArrayOutputStream g = new ByteArrayOutputStream();
+        int[] offsets = new int[order.size() + 1];
+        int k = 0;
+        for (int old : order.keySet()) {
+            offsets[k++] = g.size();
+            int at = glyf + locations[old];
+            int end = glyf + locations[old + 1];
+            if (end > at) {
+                byte[] data = Arrays.copyOfRange(b, at, end);
+                if (data.length >= 10 && (short)u16(data, 0) < 0) {
+                    for (int c : components(data, 10, data.length)) {
+                        Integer r = order.get(u16(data, c));
+                        put16(data, c, r == null ? 0 : r);
+                    }
+                }
+                g.write(data);
+                while (g.size() % 4 != 0) {
+                    g.write(0);
+                }
+            }
+        }
+        offsets[k] = g.size();
+        boolean long_offsets = g.size() > 0x1FFFE;
+        ByteArrayOutputStream l = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(l);
+        for (int o : offsets) {
+            if (long_offsets) {
+                d.writeInt(o);
+            } else {
+                d.writeShort(o / 2);
+            }
+        }
+        // hmtx: full metrics for every glyph
+        ByteArrayOutputStream h = new ByteArrayOutputStream();
+        d = new DataOutputStream(h);
+        for (int old : order.keySet()) {
+            int advance = u16(b, hmtx + 4 * Math.min(old, metrics - 1));
+            int lsb = old < metrics ? u16(b, hmtx + 4 * old + 2) : u16(b, hmtx + 4 * metrics + 2 * (old - metrics));
+            d.writeShort(advance);
+            d.writeShort(lsb);
+        }
+        TreeMap<String, byte[]> out = new TreeMap<String, byte[]>();
+        for (Map.Entry<String, int[]> e : tables.entrySet()) {
+            if (KEEP.contains(e.getKey())) {
+                int[] t = e.getValue();
+                out.put(e.getKey(), Arrays.copyOfRange(b, t[0], t[0] + t[1]));
+            }
+        }
+        out.put("glyf", g.toByteArray());
+        out.put("loca", l.toByteArray());
+        out.put("hmtx", h.toByteArray());
+        out.put("cmap", cmap(symbol, kept, order));
+        put16(out.get("head"), 50, long_offsets ? 1 : 0);
+        put32(out.get("head"), 8, 0); // checkSumAdjustment
+        put16(out.get("hhea"), 34, order.size());
+        put16(out.get("maxp"), 4, order.size());
+        if (out.containsKey("post") && out.get("post").length >= 32) {
+            byte[] post = Arrays.copyOf(out.get("post"), 32);
+            put32(post, 0, 0x00030000); // no glyph names
+            out.put("post", post);
+        }
+        return write(u32(b, 0), out);
+    }
+
+    /** @return code point -> glyph of the best unicode (or symbol) subtable, platform and encoding in pe */
+    private static TreeMap<Integer, Integer> cmap(byte[] b, int[] table, int[] pe) {
+        int cmap = table[0];
+        long limit = (long)table[0] + table[1]; // end of the table
+        int best = -1;
+        int rank = 0;
+        int n = u16(b, cmap + 2);
+        if (cmap + 4 + n * 8 > limit) {
+            return null;
+        }
+        for (int i = 0; i < n; i++) {
+            int r = cmap + 4 + i * 8;
+            int p = u16(b, r);
+            int e = u16(b, r + 2);
+            long offset = u32(b, r + 4);
+            if (cmap + offset + 16 > limit) {
+                continue; // subtable header does not fit
+            }
+            int at = cmap + (int)offset;
+            int format = u16(b, at);
+            int q = format == 12 && (p == 3 && e == 10 || p == 0) ? 4 :
+                    format == 4 && (p == 3 && e == 1 || p == 0) ? 3 :
+                    format == 4 && p == 3 && e == 0 ? 2 : 0;
+            if (q > rank) {
+                rank = q;
+                best = at;
+                pe[0] = p;
+                pe[1] = e;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        TreeMap<Integer, Integer> m = new TreeMap<Integer, Integer>();
+        if (u16(b, best) == 12) {
+            long groups = u32(b, best + 12);
+            if (best + 16 + groups * 12 > limit) {
+                return null;
+            }
+            for (int i = 0; i < groups; i++) {
+                int r = best + 16 + i * 12;
+                long start = u32(b, r);
+                long end = u32(b, r + 4);
+                long glyph = u32(b, r + 8);
+                for (long c = start; c <= end && c <= 0x10FFFF; c++) {
+                    m.put((int)c, (int)(glyph + c - start));
+                }
+            }
+        } else {
+            int segments = u16(b, best + 6) / 2;
+            int ends = best + 14;
+            int starts = ends + segments * 2 + 2;
+            int deltas = starts + segments * 2;
+            int ranges = deltas + segments * 2;
+            if (ranges + segments * 2 > limit) {
+                return null;
+            }
+            for (int i = 0; i < segments; i++) {
+                int end = u16(b, ends + i * 2);
+                int start = u16(b, starts + i * 2);
+                int delta = u16(b, deltas + i * 2);
+                int range = u16(b, ranges + i * 2);
+                for (int c = start; c <= end && c != 0xFFFF; c++) {
+                    int glyph;
+                    if (range == 0) {
+                        glyph = (c + delta) & 0xFFFF;
+                    } else {
+                        int at = ranges + i * 2 + range + (c - start) * 2;
+                        glyph = at + 2 > limit ? 0 : u16(b, at);
+                        glyph = glyph == 0 ? 0 : (glyph + delta) & 0xFFFF;
+                    }
+                    if (glyph != 0) {
+                        m.put(c, glyph);
+                    }
+                }
+            }
+        }
+        return m;
+    }
+
+    /** @return Windows cmap table: format 4 subtable (and format 12 one for code points above U+FFFF) */
+    private static byte[] cmap(boolean symbol, TreeMap<Integer, Integer> kept, Map<Integer, Integer> order) throws IOException {
+        ArrayList<int[]> segments = new ArrayList<int[]>(); // {start, end, glyph of start}
+        for (Map.Entry<Integer, Integer> e : kept.entrySet()) {
+            int c = e.getKey();
+            int glyph = order.get(e.getValue());
+            int[] last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last != null && last[1] == c - 1 && last[2] + c - last[0] == glyph) {
+                last[1] = c;
+            } else {
+                segments.add(new int[]{c, c, glyph});
+            }
+        }
+        ArrayList<int[]> bmp = new ArrayList<int[]>();
+        for (int[] s : segments) {
+            if (s[0] <= 0xFFFE) {
+                bmp.add(new int[]{s[0], Math.min(s[1], 0xFFFE), s[2]});
+            }
+        }
+        bmp.add(new int[]{0xFFFF, 0xFFFF, 0}); // required last segment maps to .notdef
+        int n = bmp.size();
+        ByteArrayOutputStream f4 = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(f4);
+        int log = 31 - Integer.numberOfLeadingZeros(n);
+        d.writeShort(4);
+        d.writeShort(16 + n * 8);
+        d.writeShort(0); // language
+        d.writeShort(n * 2);
+        d.writeShort(2 << log); // searchRange
+        d.writeShort(log);
+        d.writeShort(n * 2 - (2 << log));
+        for (int[] s : bmp) {
+            d.writeShort(s[1]);
+        }
+        d.writeShort(0); // reservedPad
+        for (int[] s : bmp) {
+            d.writeShort(s[0]);
+        }
+        for (int[] s : bmp) {
+            d.writeShort(s[0] == 0xFFFF ? 1 : (s[2] - s[0]) & 0xFFFF); // idDelta
+        }
+        for (int i = 0; i < n; i++) {
+            d.writeShort(0); // idRangeOffset
+        }
+        boolean wide = !segments.isEmpty() && segments.get(segments.size() - 1)[1] > 0xFFFF;
+        ByteArrayOutputStream t = new ByteArrayOutputStream();
+        d = new DataOutputStream(t);
+        d.writeShort(0);
+        d.writeShort(wide ? 2 : 1);
+        d.writeShort(3);
+        d.writeShort(symbol ? 0 : 1);
+        d.writeInt(wide ? 20 : 12);
+        if (wide) {
+            d.writeShort(3);
+            d.writeShort(10);
+            d.writeInt(20 + f4.size());
+        }
+        f4.writeTo(t);
+        if (wide) {
+            d.writeShort(12);
+            d.writeShort(0);
+            d.writeInt(16 + segments.size() * 12);
+            d.writeInt(0); // language
+            d.writeInt(segments.size());
+            for (int[] s : segments) {
+                d.writeInt(s[0]);
+                d.writeInt(s[1]);
+                d.writeInt(s[2]);
+            }
+        }
+        return t.toByteArray();
+    }
+
+    /** @return offsets of glyph indices of the components of the composite glyph which data starts at i */
+    private static ArrayList<Integer> components(byte[] b, int i, int end) {
+        ArrayList<Integer> r = new ArrayList<Integer>();
+        for (;;) {
+            if (i + 4 > end) {
+                return r;
+            }
+            int flags = u16(b, i);
+            r.add(i + 2);
+            i += 4 + ((flags & GLYF_WORDS) != 0 ? 4 : 2);
+            i += (flags & GLYF_SCALE) != 0 ? 2 : (flags & GLYF_XY_SCALE) != 0 ? 4 : (flags & GLYF_2X2) != 0 ? 8 : 0;
+            if ((flags & GLYF_MORE) == 0) {
+                return r;
+            }
+        }
+    }
+
+    /** @return offsets of glyphs 0..glyphs (inclusive) in glyf or null if loca is short or out of order */
+    private static int[] locations(byte[] b, int[] loca, int glyphs, boolean long_loca, int glyf_length) {
+        if (loca[1] < (glyphs + 1) * (long_loca ? 4 : 2)) {
+            return null;
+        }
+        int[] r = new int[glyphs + 1];
+        for (int g = 0; g <= glyphs; g++) {
+            long o = long_loca ? u32(b, loca[0] + g * 4) : u16(b, loca[0] + g * 2) * 2;
+            if (o > glyf_length || g > 0 && o < r[g - 1]) {
+                return null;
+            }
+            r[g] = (int)o;
+        }
+        return r;
+    }
+
+    /** @return font file with the tables, sorted by tag, 4 byte aligned and check summed */
+    private static byte[] write(long version, TreeMap<String, byte[]> tables) throws IOException {
+        int n = tables.size();
+        int log = 31 - Integer.numberOfLeadingZeros(n);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(os);
+        d.writeInt((int)version);
+        d.writeShort(n);
+        d.writeShort(16 << log); // searchRange
+        d.writeShort(log);
+        d.writeShort(n * 16 - (16 << log));
+        int offset = 12 + n * 16;
+        for (Map.Entry<String, byte[]> e : tables.entrySet()) {
+            byte[] t = e.getValue();
+            d.write(e.getKey().getBytes("ISO-8859-1"));
+            d.writeInt((int)checksum(t));
+            d.writeInt(offset);
+            d.writeInt(t.length);
+            offset += (t.length + 3) & ~3;
+        }
+        int head = 0;
+        for (Map.Entry<String, byte[]> e : tables.entrySet()) {
+            if (e.getKey().equals("head")) {
+                head = os.size();
+            }
+            os.write(e.getValue());
+            while (os.size() % 4 != 0) {
+                os.write(0);
+            }
+        }
+        byte[] font = os.toByteArray();
+        put32(font, head + 8, (int)(0xB1B0AFBAL - checksum(font)));
+        return font;
+    }
+
+    private static long checksum(byte[] b) {
+        long sum = 0;
+        for (int i = 0; i < b.length; i += 4) {
+            long v = 0;
+            for (int k = 0; k < 4; k++) {
+                v = v << 8 | (i + k < b.length ? b[i + k] & 0xFF : 0);
+            }
+            sum += v;
+        }
+        return sum & 0xFFFFFFFFL;
+    }
+
+    private static int u16(byte[] b, int i) {
+        return (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF);
+    }
+
+    private static long u32(byte[] b, int i) {
+        return (long)u16(b, i) << 16 | u16(b, i + 2);
+    }
+
+    private static void put16(byte[] b, int i, int v) {
+        b[i] = (byte)(v >>> 8);
+        b[i + 1] = (byte)v;
+    }
+
+    private static void put32(byte[] b, int i, int v) {
+        put16(b, i, v >>> 16);
+        put16(b, i + 2, v);
+    }
+
+}
@@ -0,0 +1,548 @@
+package embedjs;
+
+import javax.imageio.*;
+import javax.imageio.plugins.jpeg.*;
+import javax.imageio.stream.*;
+import java.awt.*;
+import java.awt.color.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ Lossless re-encoding of PNG and GIF images before they are embedded (see -o).
+ Image is written as PNG with the smallest of: palette (256 colors or fewer, packed
+ to 1, 2, 4 or 8 bits, transparency in tRNS) or 8 bit RGB/RGBA with adaptive row
+ filters, deflated at maximum level, without ancillary chunks. The result is used
+ only if it decodes to exactly the same pixels and is smaller than the original.
+ Animated GIFs, 16 bit and non sRGB images are left alone.
+ Results (including "not smaller") are kept in the DiskCache by content hash,
+ so every image is optimized once.
+
+ JPEG photos are re-encoded (see -q) at the given quality, optionally scaled down to
+ fit max_size, with optimized Huffman tables and without any metadata (Exif, comments,
+ thumbnails). Colors are converted to sRGB if the photo has another color profile,
+ photos rotated by Exif orientation are left alone. The result is used only if it
+ saves at least min_saving percent of the original size.
+ Encoding is CPU heavy: prefetch() starts it on all processors as soon as the image
+ is seen, optimize() then waits for the result (or does the work if nobody started it).
+*/
+
+public class Images {
+
+    private static final String PNG = "png-1"; // bump when the encoder changes
+    private static final String JPEG = "jpeg-1";
+    private static final long MAX_PIXELS = 32L * 1024 * 1024;
+    private static final byte[] SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private final DiskCache disk; // null if "-c none"
+    private final boolean lossless; // -o
+    private final int quality; // -q JPEG quality 1..100, 0 if JPEGs are left alone
+    private final int max_size; // of the longer side of JPEG in pixels, 0 if not scaled
+    private final int min_saving; // percent of the JPEG size
+    private final ConcurrentHashMap<String, FutureTask<File>> done = new ConcurrentHashMap<String, FutureTask<File>>();
+    private final ConcurrentHashMap<String, Boolean> prefetched = new ConcurrentHashMap<String, Boolean>();
+    private ExecutorService workers; // created on first prefetch
+
+    public Images(DiskCache disk, boolean lossless, int quality, int max_size, int min_saving) {
+        this.disk = disk;
+        this.lossless = lossless;
+        this.quality = quality;
+        this.max_size = max_size;
+        this.min_saving = min_saving;
+        ImageIO.setUseCache(false);
+    }
+
+    public boolean isOptimizable(File f) {
+        String n = f.getName().toLowerCase();
+        return lossless && (n.endsWith(".png") || n.endsWith(".gif")) ||
+               quality > 0 && isJpeg(n);
+    }
+
+    private static boolean isJpeg(String name) {
+        return name.endsWith(".jpg") || name.endsWith(".jpeg");
+    }
+
+    /** starts optimizing the image in background unless it has been already started */
+    public void prefetch(final File f) {
+        if (prefetched.putIfAbsent(io.getCanonicalPath(f), Boolean.TRUE) == null) {
+            workers().submit(new Runnable() {
+                public void run() {
+                    optimize(f);
+                }
+            });
+        }
+    }
+
+    private synchronized ExecutorService workers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Images.workers");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return workers;
+    }
+
+    /**
+     @return optimized copy of the image (.png for PNG and GIF, .jpg for JPEG)
+     or f itself if it cannot be made (small enough)
+    */
+    public File optimize(final File f) {
+        final boolean jpeg = isJpeg(f.getName().toLowerCase());
+        final String key;
+        InputStream is = null;
+        try {
+            is = io.open(f);
+            key = DiskCache.key(jpeg ? JPEG + " " + quality + " " + max_size : PNG, is);
+        } catch (IOException e) {
+            throw new Error(e);
+        } finally {
+            io.close(is);
+        }
+        FutureTask<File> r = done.get(key);
+        if (r == null) {
+            FutureTask<File> t = new FutureTask<File>(new Callable<File>() {
+                public File call() throws IOException {
+                    byte[] b = disk == null ? null : disk.read(key);
+                    if (b == null) {
+                        b = jpeg ? jpeg(f, quality, max_size) : encode(f);
+                        if (disk != null) {
+                            disk.write(key, b == null ? new byte[0] : b);
+                        }
+                    }
+                    if (b == null || b.length == 0) {
+                        return f;
+                    }
+                    if (jpeg && b.length > io.length(f) * (100 - min_saving) / 100) {
+                        return f; // not worth the loss
+                    }
+                    return io.temp(jpeg ? ".jpg" : ".png", b);
+                }
+            });
+            r = done.putIfAbsent(key, t);
+            if (r == null) {
+                r = t;
+            }
+        }
+        r.run(); // does nothing if the task is already running (prefetch) or done
+        try {
+            return r.get();
+        } catch (InterruptedException e) {
+            throw new Error(e);
+        } catch (ExecutionException e) {
+            throw new Error(e.getCause());
+        }
+    }
+
+    /** drops the optimized copy o (about to be deleted) so that it is made again if needed */
+    public void forget(File o) {
+        for (Iterator<FutureTask<File>> i = done.values().iterator(); i.hasNext(); ) {
+            FutureTask<File> t = i.next();
+            try {
+                if (t.isDone() && o.equals(t.get())) {
+                    i.remove();
+                }
+            } catch (InterruptedException e) {
+                throw new Error(e);
+            } catch (ExecutionException e) {
+                // failed, nothing to drop
+            }
+        }
+    }
+
+    /** @return smaller pixel identical PNG or null */
+    static byte[] encode(File f) throws IOException {
+        BufferedImage img = read(f);
+        return img == null ? null : encode(img, io.length(f));
+    }
+
+    /** @return pixel identical PNG shorter than length bytes or null */
+    static byte[] encode(BufferedImage img, long length) throws IOException {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int[] argb = img.getRGB(0, 0, w, h, null, 0, w);
+        boolean opaque = true;
+        LinkedHashMap<Integer, Integer> colors = new LinkedHashMap<Integer, Integer>();
+        for (int p : argb) {
+            opaque &= (p >>> 24) == 0xFF;
+            if (colors.size() <= 256 && !colors.containsKey(p)) {
+                colors.put(p, colors.size());
+            }
+        }
+        ArrayList<byte[]> candidates = new ArrayList<byte[]>(2);
+        if (colors.size() <= 256) {
+            candidates.add(palette(w, h, argb, colors));
+        }
+        candidates.add(truecolor(w, h, argb, opaque));
+        Collections.sort(candidates, new Comparator<byte[]>() {
+            public int compare(byte[] a, byte[] b) {
+                return a.length - b.length;
+            }
+        });
+        for (byte[] png : candidates) {
+            if (png.length >= length) {
+                return null;
+            }
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+            if (decoded != null && decoded.getWidth() == w && decoded.getHeight() == h &&
+                Arrays.equals(argb, decoded.getRGB(0, 0, w, h, null, 0, w))) {
+                return png;
+            }
+        }
+        return null;
+    }
+
+    /** @return single frame 8 bit (or less) sRGB image or null */
+    static BufferedImage read(File f) throws IOException {
+        InputStream is = io.open(f);
+        try {
+            ImageInputStream iis = ImageIO.createImageInputStream(is);
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(iis, false);
+                    if (reader.getNumImages(true) != 1) {
+                        return null; // animated
+                    }
+                    if ((long)reader.getWidth(0) * reader.getHeight(0) > MAX_PIXELS) {
+                        return null;
+                    }
+                    BufferedImage img = reader.read(0);
+                    ColorModel cm = img.getColorModel();
+                    if (!cm.getColorSpace().isCS_sRGB()) {
+                        return null;
+                    }
+                    for (int bits : cm.getComponentSize()) {
+                        if (bits > 8) {
+                            return null;
+                        }
+                    }
+                    return img;
+                } finally {
+                    reader.dispose();
+                }
+            } finally {
+                iis.close();
+            }
+        } catch (IIOException e) {
+            return null; // not really an image, embedded as is
+        } finally {
+            is.close();
+        }
+    }
+
+    /** @return photo re-encoded at quality (1..100) scaled down to fit max_size (if > 0) or null */
+    static byte[] jpeg(File f, int quality, int max_size) throws IOException {
+        if (orientation(f) > 1) {
+            return null; // without Exif the photo would be shown rotated
+        }
+        BufferedImage img = photo(f);
+        if (img == null) {
+            return null;
+        }
+        if (max_size > 0 && Math.max(img.getWidth(), img.getHeight()) > max_size) {
+            img = scale(img, max_size);
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality / 100f);
+            if (param instanceof JPEGImageWriteParam) {
+                ((JPEGImageWriteParam)param).setOptimizeHuffmanTables(true);
+            }
+            ByteArrayOutputStream os = new ByteArrayOutputStream((int)Math.min(io.length(f), 16 * 1024 * 1024));
+            ImageOutputStream ios = ImageIO.createImageOutputStream(os);
+            try {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(img, null, null), param); // no metadata
+            } finally {
+                ios.close();
+            }
+            return os.toByteArray();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /** @return JPEG decoded to 8 bit sRGB or gray image or null (CMYK, too large, broken) */
+    private static BufferedImage photo(File f) throws IOException {
+        InputStream is = io.open(f);
+        try {
+            ImageInputStream iis = ImageIO.createImageInputStream(is);
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(iis, true);
+                    if ((long)reader.getWidth(0) * reader.getHeight(0) > MAX_PIXELS) {
+                        return null;
+                    }
+                    ImageTypeSpecifier type = null; // first sRGB or gray type, reader converts color profile
+                    Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                    while (type == null && types.hasNext()) {
+                        ImageTypeSpecifier t = types.next();
+                        ColorSpace cs = t.getColorModel().getColorSpace();
+                        if ((cs.isCS_sRGB() || cs.getType() == ColorSpace.TYPE_GRAY) &&
+                            !t.getColorModel().hasAlpha() && t.getNumBands() <= 3) {
+                            type = t;
+                        }
+                    }
+                    if (type == null) {
+                        return null;
+                    }
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setDestinationType(type);
+                    return reader.read(0, param);
+                } finally {
+                    reader.dispose();
+                }
+            } finally {
+                iis.close();
+            }
+        } catch (IIOException e) {
+            return null; // CMYK or not really a JPEG, embedded as is
+        } finally {
+            is.close();
+        }
+    }
+
+    /** @return image scaled down so that the longer side is max_size */
+    private static BufferedImage scale(BufferedImage img, int max_size) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        double s = (double)max_size / Math.max(w, h);
+        int tw = Math.max(1, (int)Math.round(w * s));
+        int th = Math.max(1, (int)Math.round(h * s));
+        int type = img.getColorModel().getNumComponents() == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        // halving steps: bilinear interpolation from at most twice the size averages all pixels
+        while (w != tw || h != th) {
+            w = Math.max(tw, w / 2);
+            h = Math.max(th, h / 2);
+            BufferedImage b = new BufferedImage(w, h, type);
+            Graphics2D g = b.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(img, 0, 0, w, h, null);
+            } finally {
+                g.dispose();
+            }
+            img = b;
+        }
+        return img;
+    }
+
+    /** @return Exif orientation of the JPEG, 1 (as stored) if there is none */
+    static int orientation(File f) throws IOException {
+        byte[] b = new byte[64 * 1024 + 16]; // APP1 segment is limited to 64KB
+        int n = 0;
+        InputStream is = io.open(f);
+        try {
+            int k;
+            while (n < b.length && (k = is.read(b, n, b.length - n)) > 0) {
+                n += k;
+            }
+        } finally {
+            is.close();
+        }
+        int i = 2; // after SOI
+        while (i + 4 <= n && (b[i] & 0xFF) == 0xFF) {
+            int marker = b[i + 1] & 0xFF;
+            if (marker == 0xDA || marker == 0xD9) { // start of scan, end of image
+                break;
+            }
+            if (marker == 0xE1 && i + 18 <= n && new String(b, i + 4, 6, "ISO-8859-1").equals("Exif\0\0")) {
+                int tiff = i + 10;
+                boolean be = b[tiff] == 'M';
+                int ifd = tiff + (int)u32(b, tiff + 4, be);
+                if (ifd < tiff || ifd + 2 > n) {
+                    break;
+                }
+                int entries = u16(b, ifd, be);
+                for (int k = 0; k < entries && ifd + 2 + k * 12 + 10 <= n; k++) {
+                    int e = ifd + 2 + k * 12;
+                    if (u16(b, e, be) == 0x0112) {
+                        return u16(b, e + 8, be);
+                    }
+                }
+                break;
+            }
+            i += 2 + u16(b, i + 2, true);
+        }
+        return 1;
+    }
+
+    private static int u16(byte[] b, int i, boolean be) {
+        return be ? (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF) : (b[i + 1] & 0xFF) << 8 | (b[i] & 0xFF);
+    }
+
+    private static long u32(byte[] b, int i, boolean be) {
+        return be ? (long)u16(b, i, true) << 16 | u16(b, i + 2, true) : (long)u16(b, i + 2, false) << 16 | u16(b, i, false);
+    }
+
+    private static byte[] palette(int w, int h, int[] argb, LinkedHashMap<Integer, Integer> colors) throws IOException {
+        // translucent entries first so that tRNS can be cut short
+        ArrayList<Integer> entries = new ArrayList<Integer>(colors.keySet());
+        Collections.sort(entries, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                boolean ta = (a >>> 24) != 0xFF;
+                boolean tb = (b >>> 24) != 0xFF;
+                return ta == tb ? 0 : ta ? -1 : 1;
+            }
+        });
+        HashMap<Integer, Integer> index = new HashMap<Integer, Integer>(entries.size() * 2);
+        byte[] plte = new byte[entries.size() * 3];
+        int translucent = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            int c = entries.get(i);
+            index.put(c, i);
+            plte[i * 3] = (byte)(c >>> 16);
+            plte[i * 3 + 1] = (byte)(c >>> 8);
+            plte[i * 3 + 2] = (byte)c;
+            if ((c >>> 24) != 0xFF) {
+                translucent = i + 1;
+            }
+        }
+        byte[] trns = new byte[translucent];
+        for (int i = 0; i < translucent; i++) {
+            trns[i] = (byte)(entries.get(i) >>> 24);
+        }
+        int n = entries.size();
+        int depth = n <= 2 ? 1 : n <= 4 ? 2 : n <= 16 ? 4 : 8;
+        int stride = (w * depth + 7) / 8;
+        byte[] raw = new byte[(stride + 1) * h];
+        for (int y = 0; y < h; y++) {
+            int row = y * (stride + 1) + 1; // filter type 0 (none) works best for palettes
+            for (int x = 0; x < w; x++) {
+                int v = index.get(argb[y * w + x]);
+                int bit = x * depth;
+                raw[row + bit / 8] |= v << (8 - depth - bit % 8);
+            }
+        }
+        return png(w, h, depth, 3, plte, trns, raw);
+    }
+
+    private static byte[] truecolor(int w, int h, int[] argb, boolean opaque) throws IOException {
+        int bpp = opaque ? 3 : 4;
+        int stride = w * bpp;
+        byte[] prev = new byte[stride];
+        byte[] line = new byte[stride];
+        byte[] raw = new byte[(stride + 1) * h];
+        byte[][] filtered = new byte[5][stride];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int p = argb[y * w + x];
+                line[x * bpp] = (byte)(p >>> 16);
+                line[x * bpp + 1] = (byte)(p >>> 8);
+                line[x * bpp + 2] = (byte)p;
+                if (!opaque) {
+                    line[x * bpp + 3] = (byte)(p >>> 24);
+                }
+            }
+            // adaptive filter: the one with the smallest sum of absolute values
+            int best = 0;
+            long min = Long.MAX_VALUE;
+            for (int t = 0; t < 5; t++) {
+                long sum = 0;
+                byte[] f = filtered[t];
+                for (int i = 0; i < stride; i++) {
+                    int a = i >= bpp ? line[i - bpp] & 0xFF : 0;
+                    int b = y > 0 ? prev[i] & 0xFF : 0;
+                    int c = i >= bpp && y > 0 ? prev[i - bpp] & 0xFF : 0;
+                    int v = line[i] & 0xFF;
+                    switch (t) {
+                        case 1: v -= a; break;
+                        case 2: v -= b; break;
+                        case 3: v -= (a + b) >>> 1; break;
+                        case 4: v -= paeth(a, b, c); break;
+                        default: break;
+                    }
+                    f[i] = (byte)v;
+                    sum += Math.abs(f[i]);
+                }
+                if (sum < min) {
+                    min = sum;
+                    best = t;
+                }
+            }
+            raw[y * (stride + 1)] = (byte)best;
+            System.arraycopy(filtered[best], 0, raw, y * (stride + 1) + 1, stride);
+            byte[] t = prev;
+            prev = line;
+            line = t;
+        }
+        return png(w, h, 8, opaque ? 2 : 6, null, null, raw);
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+    }
+
+    private static byte[] png(int w, int h, int depth, int type, byte[] plte, byte[] trns, byte[] raw) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(raw.length / 2 + 1024);
+        os.write(SIGNATURE);
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        DataOutputStream d = new DataOutputStream(ihdr);
+        d.writeInt(w);
+        d.writeInt(h);
+        d.writeByte(depth);
+        d.writeByte(type);
+        d.writeByte(0); // deflate
+        d.writeByte(0); // adaptive filtering
+        d.writeByte(0); // not interlaced
+        chunk(os, "IHDR", ihdr.toByteArray());
+        if (plte != null) {
+            chunk(os, "PLTE", plte);
+        }
+        if (trns != null && trns.length > 0) {
+            chunk(os, "tRNS", trns);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream z = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buf = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                z.write(buf, 0, deflater.deflate(buf));
+            }
+            chunk(os, "IDAT", z.toByteArray());
+        } finally {
+            deflater.end();
+        }
+        chunk(os, "IEND", new byte[0]);
+        return os.toByteArray();
+    }
+
+    private static void chunk(ByteArrayOutputStream os, String type, byte[] data) throws IOException {
+        DataOutputStream d = new DataOutputStream(os);
+        byte[] t = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data);
+        d.writeInt(data.length);
+        d.write(t);
+        d.write(data);
+        d.writeInt((int)crc.getValue());
+    }
+
+}
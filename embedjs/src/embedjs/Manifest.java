@@ -0,0 +1,127 @@
+package embedjs;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ Content hashes of every file that went into (and came out of) each page
+ during previous run. Page is rebuilt only when any of the hashes changed.
+
+ Format (one entry per line):
+    options <command line options that affect output>
+    page <name>
+    <sha-256 hex or "-" for missing file> <canonical path>
+*/
+
+public class Manifest {
+
+    private static final String MISSING = "-";
+
+    private final File file;
+    private final String options;
+    private final HashMap<String, LinkedHashMap<String, String>> pages =
+            new HashMap<String, LinkedHashMap<String, String>>();
+    private final ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<String, String>(256);
+
+    public Manifest(File file, String options) {
+        this.file = file;
+        this.options = options;
+        if (io.isFile(file)) {
+            load();
+        }
+    }
+
+    private void load() {
+        String[] lines = new String(io.readFully(file)).split("\\r?\\n");
+        if (lines.length == 0 || !("options " + options).equals(lines[0])) {
+            return; // different options: everything must be rebuilt
+        }
+        LinkedHashMap<String, String> deps = null;
+        for (int i = 1; i < lines.length; i++) {
+            String s = lines[i];
+            if (s.startsWith("page ")) {
+                deps = new LinkedHashMap<String, String>();
+                pages.put(s.substring(5), deps);
+            } else if (deps != null && s.indexOf(' ') > 0) {
+                int k = s.indexOf(' ');
+                deps.put(s.substring(k + 1), s.substring(0, k));
+            }
+        }
+    }
+
+    /** @return true if page has been built before and none of its inputs or outputs changed since */
+    public boolean isUpToDate(String page) {
+        LinkedHashMap<String, String> deps = pages.get(page);
+        if (deps == null || deps.isEmpty()) {
+            return false;
+        }
+        for (Map.Entry<String, String> e : deps.entrySet()) {
+            if (!e.getValue().equals(hash(new File(e.getKey()), false))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** records hashes of the page dependencies (computed by hashes()) */
+    public void put(String page, LinkedHashMap<String, String> deps) {
+        pages.put(page, deps);
+    }
+
+    /** inputs are hashed at most once per run; outputs are hashed after they have been written */
+    public LinkedHashMap<String, String> hashes(Collection<File> inputs, Collection<File> outputs) {
+        LinkedHashMap<String, String> r = new LinkedHashMap<String, String>();
+        for (File f : inputs) {
+            r.put(io.getCanonicalPath(f), hash(f, false));
+        }
+        for (File f : outputs) {
+            r.put(io.getCanonicalPath(f), hash(f, true));
+        }
+        return r;
+    }
+
+    /** drops remembered hash of the file that has been modified */
+    public void forget(String path) {
+        hashes.remove(path);
+    }
+
+    public void save() {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("options ").append(options).append('\n');
+        for (Map.Entry<String, LinkedHashMap<String, String>> p : new TreeMap<String, LinkedHashMap<String, String>>(pages).entrySet()) {
+            sb.append("page ").append(p.getKey()).append('\n');
+            for (Map.Entry<String, String> e : p.getValue().entrySet()) {
+                sb.append(e.getValue()).append(' ').append(e.getKey()).append('\n');
+            }
+        }
+        try {
+            io.write(file, sb.toString().getBytes("UTF8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    private String hash(File f, boolean fresh) {
+        String path = io.getCanonicalPath(f);
+        String h = fresh ? null : hashes.get(path);
+        if (h == null) {
+            h = io.isFile(f) ? sha256(f) : MISSING;
+            hashes.put(path, h);
+        }
+        return h;
+    }
+
+    private static String sha256(File f) {
+        InputStream is = null;
+        try {
+            is = io.stream(f);
+            return io.sha256(is);
+        } catch (IOException e) {
+            throw new Error(e);
+        } finally {
+            io.close(is);
+        }
+    }
+
+}
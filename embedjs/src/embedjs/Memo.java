@@ -0,0 +1,114 @@
+package embedjs;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ Memoized strings (compressed scripts and stylesheets) bounded by approximate
+ memory budget. Each value is computed once even if requested concurrently.
+ When the budget is exceeded least recently used values are evicted and
+ computed again if needed (see DiskCache for what makes recomputation cheap).
+*/
+
+public class Memo {
+
+    private final long budget;
+    private long size; // guarded by this
+    private final LinkedHashMap<String, Future<String>> map =
+            new LinkedHashMap<String, Future<String>>(256, 0.75f, true); // access order
+    private final HashMap<String, Long> weights = new HashMap<String, Long>(256); // of computed values
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public Memo(long budget) {
+        this.budget = budget;
+    }
+
+    public String get(String key, Callable<String> c) {
+        FutureTask<String> t = null;
+        Future<String> f;
+        synchronized (this) {
+            f = map.get(key);
+            if (f == null) {
+                t = new FutureTask<String>(c);
+                map.put(key, t);
+                f = t;
+            }
+        }
+        if (t == null) {
+            hits.incrementAndGet();
+            return get(f);
+        }
+        misses.incrementAndGet();
+        t.run();
+        String r = get(t);
+        synchronized (this) {
+            if (map.get(key) == t) { // not removed while being computed
+                long w = 2L * r.length() + 64; // chars and some object overhead
+                weights.put(key, w);
+                size += w;
+                evict(key);
+            }
+        }
+        return r;
+    }
+
+    public synchronized void remove(String key) {
+        map.remove(key);
+        Long w = weights.remove(key);
+        size -= w == null ? 0 : w;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        weights.clear();
+        size = 0;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /** @return approximate number of bytes held */
+    public synchronized long size() {
+        return size;
+    }
+
+    private void evict(String keep) {
+        Iterator<String> i = map.keySet().iterator();
+        while (size > budget && i.hasNext()) {
+            String key = i.next(); // least recently used first
+            Long w = weights.get(key);
+            if (w != null && !key.equals(keep)) { // still being computed otherwise
+                i.remove();
+                weights.remove(key);
+                size -= w;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static String get(Future<String> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new Error(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error)e.getCause();
+            }
+            throw new Error(e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+package embedjs;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ Machine readable summary of the build (see -r) written as JSON when the build ends:
+ totals of phase times (milliseconds), bytes and counters, the same per page,
+ and the slowest pages and assets.
+
+    {
+      "time_ms": ..., "gzip_ms": ..., "pages": N,
+      "totals": { "read_ms": ..., ..., "bytes_in": ..., "assets": { "png": N, ... } },
+      "memo": { "hits": ..., "misses": ..., "evictions": ..., "bytes": ... },
+      "slowest_pages": [ { "page": "index.html", "time_ms": ... }, ... ],
+      "slowest_assets": [ { "path": "...", "time_ms": ... }, ... ],
+      "page_stats": [ { "page": "index.html", "time_ms": ..., "read_ms": ..., ... }, ... ]
+    }
+*/
+
+public class Report {
+
+    private static final int SLOWEST = 10;
+
+    private final File file;
+
+    public Report(File file) {
+        this.file = file;
+    }
+
+    public void save(List<Stats> pages, long nanos, long gzip, Memo memo) {
+        Stats total = new Stats(null);
+        HashMap<String, Long> items = new HashMap<String, Long>();
+        for (Stats s : pages) {
+            for (int i = 0; i < s.nanos.length; i++) {
+                total.nanos[i] += s.nanos[i];
+            }
+            total.time += s.time;
+            total.bytes_in += s.bytes_in;
+            total.bytes_out += s.bytes_out;
+            total.stripped += s.stripped;
+            total.compressed += s.compressed;
+            total.memo_misses += s.memo_misses;
+            total.disk_hits += s.disk_hits;
+            total.disk_misses += s.disk_misses;
+            for (Map.Entry<String, Integer> e : s.assets.entrySet()) {
+                Integer k = total.assets.get(e.getKey());
+                total.assets.put(e.getKey(), k == null ? e.getValue() : k + e.getValue());
+            }
+            for (Map.Entry<String, Long> e : s.items.entrySet()) {
+                Long n = items.get(e.getKey());
+                items.put(e.getKey(), n == null ? e.getValue() : n + e.getValue());
+            }
+        }
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("{\n  \"time_ms\": ").append(ms(nanos));
+        sb.append(",\n  \"gzip_ms\": ").append(ms(gzip));
+        sb.append(",\n  \"pages\": ").append(pages.size());
+        sb.append(",\n  \"totals\": ");
+        stats(sb, total);
+        sb.append(",\n  \"memo\": { \"hits\": ").append(memo.hits()).append(", \"misses\": ").append(memo.misses())
+          .append(", \"evictions\": ").append(memo.evictions()).append(", \"bytes\": ").append(memo.size()).append(" }");
+        ArrayList<Stats> slowest = new ArrayList<Stats>(pages);
+        Collections.sort(slowest, new Comparator<Stats>() {
+            public int compare(Stats a, Stats b) {
+                return a.time > b.time ? -1 : a.time < b.time ? 1 : a.page.compareTo(b.page);
+            }
+        });
+        sb.append(",\n  \"slowest_pages\": [");
+        for (int i = 0; i < Math.min(SLOWEST, slowest.size()); i++) {
+            Stats s = slowest.get(i);
+            sb.append(i == 0 ? "\n    " : ",\n    ").append("{ \"page\": ").append(quote(s.page))
+              .append(", \"time_ms\": ").append(ms(s.time)).append(" }");
+        }
+        sb.append("\n  ]");
+        ArrayList<Map.Entry<String, Long>> assets = new ArrayList<Map.Entry<String, Long>>(items.entrySet());
+        Collections.sort(assets, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                int c = b.getValue().compareTo(a.getValue());
+                return c != 0 ? c : a.getKey().compareTo(b.getKey());
+            }
+        });
+        sb.append(",\n  \"slowest_assets\": [");
+        for (int i = 0; i < Math.min(SLOWEST, assets.size()); i++) {
+            Map.Entry<String, Long> e = assets.get(i);
+            sb.append(i == 0 ? "\n    " : ",\n    ").append("{ \"path\": ").append(quote(e.getKey()))
+              .append(", \"time_ms\": ").append(ms(e.getValue())).append(" }");
+        }
+        sb.append("\n  ]");
+        sb.append(",\n  \"page_stats\": [");
+        for (int i = 0; i < pages.size(); i++) {
+            sb.append(i == 0 ? "\n    " : ",\n    ");
+            stats(sb, pages.get(i));
+        }
+        sb.append("\n  ]\n}\n");
+        try {
+            io.write(file, sb.toString().getBytes("UTF8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    private static void stats(StringBuilder sb, Stats s) {
+        sb.append("{ ");
+        if (s.page != null) {
+            sb.append("\"page\": ").append(quote(s.page)).append(", ");
+        }
+        sb.append("\"time_ms\": ").append(ms(s.time));
+        for (Stats.Phase p : Stats.Phase.values()) {
+            sb.append(", \"").append(p.name().toLowerCase()).append("_ms\": ").append(ms(s.nanos[p.ordinal()]));
+        }
+        sb.append(", \"bytes_in\": ").append(s.bytes_in);
+        sb.append(", \"bytes_out\": ").append(s.bytes_out);
+        sb.append(", \"comments_stripped\": ").append(s.stripped);
+        sb.append(", \"memo_hits\": ").append(s.compressed - s.memo_misses);
+        sb.append(", \"memo_misses\": ").append(s.memo_misses);
+        sb.append(", \"disk_hits\": ").append(s.disk_hits);
+        sb.append(", \"disk_misses\": ").append(s.disk_misses);
+        sb.append(", \"assets\": {");
+        boolean first = true;
+        for (Map.Entry<String, Integer> e : s.assets.entrySet()) {
+            sb.append(first ? " " : ", ").append(quote(e.getKey())).append(": ").append(e.getValue());
+            first = false;
+        }
+        sb.append(first ? "} }" : " } }");
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e6);
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int)c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+}
@@ -0,0 +1,369 @@
+package embedjs;
+
+import javax.imageio.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ CSS sprites (see -b): small PNG and GIF background images of a stylesheet are packed
+ into one PNG that is embedded once, rules that used them show their part of the sprite
+ with background-position. Only rules that cannot show more than their own image are
+ rewritten: the block has a single url() in background or background-image (one layer),
+ no-repeat, no background-size and position (if any) in pixels. Elements must not be
+ larger than their image, otherwise neighbouring images of the sprite show through.
+ Stylesheets that set background-position in rules without url() (hand made sprites,
+ :hover states) are left alone.
+ Images are packed first fit by decreasing height onto shelves about as wide as the
+ square root of their total area, with 1 pixel of transparent gap between them.
+*/
+
+public class Sprites {
+
+    private static final int GAP = 1;
+    private static final Pattern URL = Pattern.compile("url\\(([^)]*)\\)");
+    private static final Pattern TOKEN = Pattern.compile("url\\([^)]*\\)|[^\\s(]+(\\([^)]*\\))?|\\(");
+    private static final Pattern PX = Pattern.compile("-?\\d+px|0");
+    private static final Pattern IMPORTANT = Pattern.compile("(?i)\\s*!\\s*important\\s*$");
+    private static final Set<String> REPEAT = new HashSet<String>(Arrays.asList(
+            "repeat", "repeat-x", "repeat-y", "space", "round"));
+    private static final Set<String> HARMLESS = new HashSet<String>(Arrays.asList( // with background-image
+            "background-color", "background-attachment", "background-clip", "background-origin"));
+
+    final File png; // null if there was nothing to pack
+    final LinkedHashMap<String, File> images = new LinkedHashMap<String, File>(); // url -> packed image
+    private final HashMap<String, int[]> at = new HashMap<String, int[]>(); // url -> {x, y}
+    int width;
+    int height;
+
+    private Sprites(File png) {
+        this.png = png;
+    }
+
+    public static boolean isSpritable(File f) {
+        String n = f.getName().toLowerCase();
+        return n.endsWith(".png") || n.endsWith(".gif");
+    }
+
+    /** background of a rule that can be replaced by a part of the sprite */
+    private static class Use {
+        String url;
+        int[] image; // {start, end} of the declaration with url()
+        int[] position; // of background-position declaration or null
+        int x;
+        int y;
+    }
+
+    /** @return distinct urls of images used by rules that can show them from a sprite */
+    public static List<String> urls(String css) {
+        LinkedHashSet<String> urls = new LinkedHashSet<String>();
+        for (int[] b : blocks(css)) {
+            String block = css.substring(b[0], b[1]);
+            if (!URL.matcher(block).find()) {
+                for (int[] d : declarations(block)) {
+                    if (property(block, d).startsWith("background-position")) {
+                        return Collections.emptyList(); // hand made sprite
+                    }
+                }
+            }
+            Use u = use(block);
+            if (u != null) {
+                urls.add(u.url);
+            }
+        }
+        return new ArrayList<String>(urls);
+    }
+
+    /**
+     @param name of the sprite file
+     @param candidates url -&gt; image, images larger than max_size pixels or unreadable are left out
+     @return sprite of the images, without png if fewer than two could be packed
+    */
+    public static Sprites pack(String name, LinkedHashMap<String, File> candidates, int max_size) throws IOException {
+        final ArrayList<String> urls = new ArrayList<String>();
+        final ArrayList<BufferedImage> imgs = new ArrayList<BufferedImage>();
+        HashMap<File, BufferedImage> read = new HashMap<File, BufferedImage>();
+        for (Map.Entry<String, File> e : candidates.entrySet()) {
+            BufferedImage img = read.containsKey(e.getValue()) ? read.get(e.getValue()) : Images.read(e.getValue());
+            read.put(e.getValue(), img);
+            if (img != null && img.getWidth() <= max_size && img.getHeight() <= max_size) {
+                urls.add(e.getKey());
+                imgs.add(img);
+            }
+        }
+        if (new HashSet<BufferedImage>(imgs).size() < 2) {
+            return new Sprites(null);
+        }
+        // the same image under different urls is packed once:
+        ArrayList<BufferedImage> distinct = new ArrayList<BufferedImage>(new LinkedHashSet<BufferedImage>(imgs));
+        Collections.sort(distinct, new Comparator<BufferedImage>() { // stable: equal ones stay in order of use
+            public int compare(BufferedImage a, BufferedImage b) {
+                return a.getHeight() != b.getHeight() ? b.getHeight() - a.getHeight() : b.getWidth() - a.getWidth();
+            }
+        });
+        long area = 0;
+        int widest = 0;
+        for (BufferedImage img : distinct) {
+            area += (long)(img.getWidth() + GAP) * (img.getHeight() + GAP);
+            widest = Math.max(widest, img.getWidth());
+        }
+        int limit = Math.max(widest, (int)Math.ceil(Math.sqrt(area)));
+        ArrayList<int[]> shelves = new ArrayList<int[]>(); // {y, used width}
+        IdentityHashMap<BufferedImage, int[]> xy = new IdentityHashMap<BufferedImage, int[]>();
+        int w = 0;
+        int h = 0;
+        for (BufferedImage img : distinct) {
+            int[] shelf = null;
+            for (int[] s : shelves) {
+                if (s[1] + img.getWidth() <= limit) {
+                    shelf = s;
+                    break;
+                }
+            }
+            if (shelf == null) { // images are sorted by height, the first one is the highest on the shelf
+                shelf = new int[]{h == 0 ? 0 : h + GAP, 0};
+                shelves.add(shelf);
+                h = shelf[0] + img.getHeight();
+            }
+            xy.put(img, new int[]{shelf[1], shelf[0]});
+            w = Math.max(w, shelf[1] + img.getWidth());
+            shelf[1] += img.getWidth() + GAP;
+        }
+        BufferedImage sprite = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        for (BufferedImage img : distinct) {
+            int[] p = xy.get(img);
+            int iw = img.getWidth();
+            int ih = img.getHeight();
+            sprite.setRGB(p[0], p[1], iw, ih, img.getRGB(0, 0, iw, ih, null, 0, iw), 0, iw);
+        }
+        byte[] b = Images.encode(sprite, Long.MAX_VALUE);
+        if (b == null) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            ImageIO.write(sprite, "png", os);
+            b = os.toByteArray();
+        }
+        Sprites s = new Sprites(io.named(name, b));
+        s.width = w;
+        s.height = h;
+        for (int i = 0; i < urls.size(); i++) {
+            s.images.put(urls.get(i), candidates.get(urls.get(i)));
+            s.at.put(urls.get(i), xy.get(imgs.get(i)));
+        }
+        return s;
+    }
+
+    /** @return css with rules using packed images showing them from the sprite ref, css itself if none */
+    public String rewrite(String css, String ref) {
+        StringBuilder sb = null;
+        int i = 0;
+        for (int[] b : blocks(css)) {
+            String block = css.substring(b[0], b[1]);
+            Use u = use(block);
+            int[] p = u == null ? null : at.get(u.url);
+            if (p == null) {
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(css.length());
+            }
+            sb.append(css, i, b[0]);
+            sb.append(rewrite(block, u, ref, u.x - p[0], u.y - p[1]));
+            i = b[1];
+        }
+        return sb == null ? css : sb.append(css, i, css.length()).toString();
+    }
+
+    private static String rewrite(String block, Use u, String ref, int x, int y) {
+        String position = px(x) + " " + px(y);
+        StringBuilder sb = new StringBuilder(block.length() + ref.length());
+        String value = value(block, u.image);
+        Matcher important = IMPORTANT.matcher(value);
+        String priority = important.find() ? "!important" : "";
+        if ("background".equals(property(block, u.image))) {
+            sb.append(block, 0, u.image[0]).append("background:");
+            Matcher m = TOKEN.matcher(priority.isEmpty() ? value : value.substring(0, important.start()));
+            String sep = "";
+            while (m.find()) {
+                if (m.group().startsWith("url(")) {
+                    sb.append(sep).append(ref);
+                } else if (!PX.matcher(m.group()).matches()) {
+                    sb.append(sep).append(m.group());
+                }
+                sep = " ";
+            }
+            sb.append(" ").append(position).append(priority);
+            sb.append(block, u.image[1], block.length());
+        } else {
+            sb.append(block, 0, u.image[0]).append("background-image:").append(ref).append(priority);
+            if (u.position == null) {
+                sb.append(";background-position:").append(position).append(priority);
+                sb.append(block, u.image[1], block.length());
+            } else {
+                Matcher m = IMPORTANT.matcher(value(block, u.position));
+                sb.append(block, u.image[1], u.position[0]).append("background-position:").append(position);
+                sb.append(m.find() ? "!important" : "");
+                sb.append(block, u.position[1], block.length());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String px(int v) {
+        return v == 0 ? "0" : v + "px";
+    }
+
+    /** @return background of the block that can be shown from a sprite or null */
+    private static Use use(String block) {
+        Matcher m = URL.matcher(block);
+        if (!m.find()) {
+            return null;
+        }
+        int url = m.start();
+        Use u = new Use();
+        u.url = unquote(m.group(1));
+        if (m.find()) {
+            return null; // fallbacks, several rules or layers
+        }
+        boolean shorthand = false;
+        boolean no_repeat = false;
+        for (int[] d : declarations(block)) {
+            String p = property(block, d);
+            String v = IMPORTANT.matcher(value(block, d)).replaceFirst("").trim().toLowerCase();
+            if (d[0] <= url && url < d[1]) {
+                if (!"background".equals(p) && !"background-image".equals(p)) {
+                    return null;
+                }
+                u.image = d;
+                shorthand = "background".equals(p);
+                no_repeat &= !shorthand; // reset by the shorthand
+                Matcher t = TOKEN.matcher(v);
+                ArrayList<Integer> coords = new ArrayList<Integer>(2);
+                int last = -1;
+                for (int k = 0; t.find(); k++) {
+                    String token = t.group();
+                    if (token.startsWith("url(")) {
+                        continue;
+                    } else if (!shorthand || REPEAT.contains(token) || token.contains("/") || token.contains(",") ||
+                               token.endsWith("%") || token.matches("left|right|center|top|bottom")) {
+                        return null;
+                    } else if (PX.matcher(token).matches()) {
+                        if (last >= 0 && last != k - 1) {
+                            return null;
+                        }
+                        last = k;
+                        coords.add(token.equals("0") ? 0 : Integer.parseInt(token.substring(0, token.length() - 2)));
+                    } else if ("no-repeat".equals(token)) {
+                        no_repeat = true;
+                    }
+                }
+                if (coords.size() == 2) {
+                    u.x = coords.get(0);
+                    u.y = coords.get(1);
+                } else if (!coords.isEmpty()) {
+                    return null; // one value centers the other
+                }
+            } else if ("background".equals(p)) {
+                return null;
+            } else if (p.startsWith("background") && u.image != null && shorthand) {
+                return null; // longhands after the shorthand
+            } else if ("background-repeat".equals(p)) {
+                if (!v.matches("no-repeat(\\s+no-repeat)?")) {
+                    return null;
+                }
+                no_repeat = true;
+            } else if ("background-position".equals(p)) {
+                String[] xy = v.split("\\s+");
+                if (xy.length != 2 || !PX.matcher(xy[0]).matches() || !PX.matcher(xy[1]).matches()) {
+                    return null;
+                }
+                u.position = d;
+                u.x = xy[0].equals("0") ? 0 : Integer.parseInt(xy[0].substring(0, xy[0].length() - 2));
+                u.y = xy[1].equals("0") ? 0 : Integer.parseInt(xy[1].substring(0, xy[1].length() - 2));
+            } else if (p.startsWith("background") && !HARMLESS.contains(p)) {
+                return null; // size, position-x...
+            }
+        }
+        if (u.image == null || !no_repeat || u.url.startsWith("data:") ||
+            shorthand && u.position != null) {
+            return null;
+        }
+        return u;
+    }
+
+    /** @return {start, end} of declaration blocks that have no nested blocks */
+    private static ArrayList<int[]> blocks(String css) {
+        ArrayList<int[]> blocks = new ArrayList<int[]>();
+        int open = -1;
+        for (int i = 0; i < css.length(); i++) {
+            char c = css.charAt(i);
+            if (c == '"' || c == '\'') {
+                i = skip(css, i);
+            } else if (c == '/' && css.startsWith("/*", i)) {
+                int e = css.indexOf("*/", i + 2);
+                i = e < 0 ? css.length() : e + 1;
+            } else if (c == '{') {
+                open = i + 1;
+            } else if (c == '}') {
+                if (open >= 0) {
+                    blocks.add(new int[]{open, i});
+                }
+                open = -1;
+            }
+        }
+        return blocks;
+    }
+
+    /** @return {start, end} of declarations of the block, semicolons in strings and url() do not count */
+    private static ArrayList<int[]> declarations(String block) {
+        ArrayList<int[]> declarations = new ArrayList<int[]>();
+        int start = 0;
+        int parens = 0;
+        for (int i = 0; i <= block.length(); i++) {
+            char c = i < block.length() ? block.charAt(i) : ';';
+            if (c == '"' || c == '\'') {
+                i = skip(block, i);
+            } else if (c == '(') {
+                parens++;
+            } else if (c == ')') {
+                parens = Math.max(0, parens - 1);
+            } else if (c == ';' && (parens == 0 || i == block.length())) {
+                if (block.indexOf(':', start) >= 0 && block.indexOf(':', start) < i) {
+                    declarations.add(new int[]{start, i});
+                }
+                start = i + 1;
+            }
+        }
+        return declarations;
+    }
+
+    /** @return index of the quote that closes the string starting at i */
+    private static int skip(String s, int i) {
+        char q = s.charAt(i);
+        for (i++; i < s.length(); i++) {
+            if (s.charAt(i) == '\\') {
+                i++;
+            } else if (s.charAt(i) == q) {
+                return i;
+            }
+        }
+        return s.length();
+    }
+
+    private static String property(String block, int[] d) {
+        return block.substring(d[0], block.indexOf(':', d[0])).trim().toLowerCase();
+    }
+
+    private static String value(String block, int[] d) {
+        return block.substring(block.indexOf(':', d[0]) + 1, d[1]);
+    }
+
+    private static String unquote(String s) {
+        s = s.trim();
+        if (s.length() > 1 && (s.startsWith("\"") && s.endsWith("\"") || s.startsWith("'") && s.endsWith("'"))) {
+            s = s.substring(1, s.length() - 1);
+        }
+        return s.trim();
+    }
+
+}
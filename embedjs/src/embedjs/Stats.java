@@ -0,0 +1,99 @@
+package embedjs;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ Timings and counters of one page (see Report). Phase times are exclusive:
+ time spent in a nested phase (e.g. compressing a script found while rewriting
+ the page) is not counted in the enclosing one. Only used by the thread that
+ builds the page.
+*/
+
+public class Stats {
+
+    public enum Phase { READ, STRIP, COMPRESS, BASE64, REWRITE, WRITE }
+
+    final String page;
+    final long[] nanos = new long[Phase.values().length];
+    long time; // wall clock of the whole page
+    long bytes_in; // of all files the page was built from
+    long bytes_out; // of all files written (or referenced copies) for the page
+    long stripped; // comment bytes
+    int compressed; // requests for compressed script or stylesheet
+    int memo_misses; // of those compressed again (not in memory)
+    int disk_hits;
+    int disk_misses;
+    final TreeMap<String, Integer> assets = new TreeMap<String, Integer>(); // extension -> count
+    final HashMap<String, Long> items = new HashMap<String, Long>(); // asset path -> nanos
+    private final Phase[] stack = new Phase[16];
+    private int depth;
+    private long mark;
+
+    public Stats(String page) {
+        this.page = page;
+    }
+
+    public void enter(Phase p) {
+        long t = System.nanoTime();
+        if (depth > 0) {
+            nanos[stack[depth - 1].ordinal()] += t - mark;
+        }
+        stack[depth++] = p;
+        mark = t;
+    }
+
+    public void exit() {
+        long t = System.nanoTime();
+        nanos[stack[--depth].ordinal()] += t - mark;
+        mark = t;
+    }
+
+    /** records time spent on compressing, encoding or copying the asset */
+    public void item(String path, long nanos) {
+        Long n = items.get(path);
+        items.put(path, n == null ? nanos : n + nanos);
+    }
+
+    public void asset(File f) {
+        String n = f.getName().toLowerCase();
+        int dot = n.lastIndexOf('.');
+        String ext = dot < 0 ? "" : n.substring(dot + 1);
+        Integer k = assets.get(ext);
+        assets.put(ext, k == null ? 1 : k + 1);
+    }
+
+    /** @return output stream that counts time spent writing to os as WRITE phase */
+    public OutputStream timed(final OutputStream os) {
+        return new FilterOutputStream(os) {
+
+            public void write(int b) throws IOException {
+                enter(Phase.WRITE);
+                try {
+                    os.write(b);
+                } finally {
+                    exit();
+                }
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                enter(Phase.WRITE);
+                try {
+                    os.write(b, off, len);
+                } finally {
+                    exit();
+                }
+            }
+
+            public void close() throws IOException {
+                enter(Phase.WRITE);
+                try {
+                    os.close();
+                } finally {
+                    exit();
+                }
+            }
+        };
+    }
+
+}
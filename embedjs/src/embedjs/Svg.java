@@ -0,0 +1,163 @@
+package embedjs;
+
+import com.google.common.base.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ SVG images are embedded as text: minified and percent encoded "data:image/svg+xml,"
+ uris are smaller than base64 and compress much better. Minification drops the XML
+ declaration, the DOCTYPE (unless it declares entities), comments and whitespace
+ between tags, collapses whitespace inside tags and quotes attribute values with '.
+ Whitespace in &lt;text&gt;, &lt;style&gt; and the like is kept as is.
+ Only characters that would break the uri in a "quoted" html attribute or css string
+ are escaped: % # &amp; " \ &lt; (so that the uri cannot close &lt;style&gt;), control
+ characters and non ASCII (as UTF-8).
+ With -s &lt;img&gt; of an SVG is replaced by the &lt;svg&gt; element itself, unless the
+ image has ids that could clash with ids of the page or of other inlined images, or
+ styles and scripts that would apply to the whole page.
+*/
+
+public class Svg {
+
+    private static final Escaper ESCAPER = new PercentEscaper(" !$'()*+,-./:;=>?@[]^_`{|}~", false);
+    private static final Pattern ENCODING = Pattern.compile("^\\s*<\\?xml[^>]*encoding\\s*=\\s*['\"]([^'\"]+)['\"]");
+    private static final Pattern GLOBAL = Pattern.compile("(?i)\\sid=|<(\\w+:)?(style|script)\\b"); // leak into the page
+    private static final HashSet<String> PRESERVE = new HashSet<String>(Arrays.asList(
+            "text", "tspan", "textpath", "title", "desc", "style", "script", "pre", "foreignobject"));
+
+    public static boolean isSvg(File f) {
+        return f.getName().toLowerCase().endsWith(".svg");
+    }
+
+    /** @return minified SVG image */
+    public static String minify(File f) {
+        byte[] b = io.readFully(f);
+        String charset = "UTF8";
+        Matcher m = ENCODING.matcher(new String(b, 0, Math.min(b.length, 256), Charsets.ISO_8859_1));
+        if (m.find()) {
+            charset = m.group(1);
+        }
+        try {
+            return minify(new String(b, charset));
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(f + " " + e.getMessage(), e);
+        }
+    }
+
+    static String minify(String s) {
+        int n = s.length();
+        StringBuilder sb = new StringBuilder(n);
+        int preserve = 0; // depth of elements where whitespace matters
+        int i = s.startsWith("\uFEFF") ? 1 : 0;
+        while (i < n) {
+            if (s.charAt(i) != '<') {
+                int e = s.indexOf('<', i);
+                e = e < 0 ? n : e;
+                if (preserve > 0) {
+                    sb.append(s, i, e);
+                } else if (s.substring(i, e).trim().length() > 0) {
+                    sb.append(s.substring(i, e).replaceAll("\\s+", " "));
+                }
+                i = e;
+            } else if (s.startsWith("<!--", i)) {
+                int e = s.indexOf("-->", i + 4);
+                i = e < 0 ? n : e + 3;
+            } else if (s.startsWith("<![CDATA[", i)) {
+                int e = s.indexOf("]]>", i);
+                e = e < 0 ? n : e + 3;
+                sb.append(s, i, e);
+                i = e;
+            } else if (s.startsWith("<?xml", i) && i + 5 < n && Character.isWhitespace(s.charAt(i + 5))) {
+                int e = s.indexOf("?>", i);
+                i = e < 0 ? n : e + 2;
+            } else if (s.startsWith("<!", i) || s.startsWith("<?", i)) {
+                int e = s.indexOf('>', i);
+                int subset = s.indexOf('[', i);
+                if (subset >= 0 && subset < e) { // internal subset: <!DOCTYPE svg [ <!ENTITY ...> ]>
+                    e = s.indexOf("]>", subset);
+                    e = e < 0 ? n : e + 2;
+                    sb.append(s, i, e);
+                } else {
+                    e = e < 0 ? n : e + 1;
+                    if (s.startsWith("<?", i)) {
+                        sb.append(s, i, e); // processing instruction like xml-stylesheet
+                    }
+                }
+                i = e;
+            } else {
+                int e = tag(s, i, sb);
+                String name = name(s, i);
+                if (PRESERVE.contains(name)) {
+                    if (s.charAt(i + 1) == '/') {
+                        preserve = Math.max(0, preserve - 1);
+                    } else if (s.charAt(e - 2) != '/') {
+                        preserve++;
+                    }
+                }
+                i = e;
+            }
+        }
+        return sb.toString();
+    }
+
+    /** appends minified tag starting at i to sb @return index after the tag */
+    private static int tag(String s, int i, StringBuilder sb) {
+        int n = s.length();
+        boolean space = false;
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\'') {
+                int e = s.indexOf(c, i + 1);
+                e = e < 0 ? n : e;
+                String v = s.substring(i + 1, e);
+                char q = c == '"' && v.indexOf('\'') < 0 ? '\'' : c; // ' needs no escaping
+                if (space && sb.charAt(sb.length() - 1) != '=') {
+                    sb.append(' ');
+                }
+                space = false;
+                sb.append(q).append(v).append(q);
+                i = e;
+            } else if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && c != '>' && c != '/' && c != '=' && sb.charAt(sb.length() - 1) != '=') {
+                    sb.append(' ');
+                }
+                space = false;
+                sb.append(c);
+                if (c == '>') {
+                    return i + 1;
+                }
+            }
+        }
+        return n;
+    }
+
+    private static String name(String s, int i) {
+        int b = i + (i + 1 < s.length() && s.charAt(i + 1) == '/' ? 2 : 1);
+        int e = b;
+        while (e < s.length() && !Character.isWhitespace(s.charAt(e)) && "/>".indexOf(s.charAt(e)) < 0) {
+            e++;
+        }
+        String name = s.substring(b, e).toLowerCase();
+        return name.substring(name.indexOf(':') + 1); // svg:text
+    }
+
+    /** @return "data:image/svg+xml," uri of the minified image */
+    public static String uri(String svg) {
+        return "data:image/svg+xml," + ESCAPER.escape(svg);
+    }
+
+    /** @return the &lt;svg&gt; element of the minified image or null if it should not be inlined */
+    public static String element(String svg) {
+        int i = svg.indexOf("<svg");
+        if (i != 0 || GLOBAL.matcher(svg).find()) {
+            return null; // DOCTYPE with entities, processing instructions, ids, styles or scripts
+        }
+        return svg;
+    }
+
+}
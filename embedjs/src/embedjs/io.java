@@ -1,11 +1,21 @@
 package embedjs;
 
+import com.google.common.util.*;
+
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 
 public class io {
 
     private static final char INCLUDE = '_'; // prefix
+    // files of this size and larger are memory mapped instead of read into heap buffers:
+    private static final long MAP_THRESHOLD = 1024 * 1024;
 
     public static boolean isDirectory(File d) {
         try {
@@ -41,7 +51,10 @@ public class io {
         FileInputStream s = null;
         try {
             s = new FileInputStream(f);
-            return readFully(s);
+            FileChannel fc = s.getChannel();
+            byte[] content = new byte[size(f, fc.size())];
+            int k = read(fc, content, 0, content.length);
+            return k == content.length ? content : Arrays.copyOf(content, k); // truncated while being read
         } catch (IOException e) {
             throw new Error(e);
         } finally {
@@ -49,10 +62,80 @@ public class io {
         }
     }
 
-    public static void close(InputStream s) {
+    private static int size(File f, long n) {
+        if (n > Integer.MAX_VALUE - 8) {
+            throw new Error("file " + f + " is too large: " + n + " bytes");
+        }
+        return (int)n;
+    }
+
+    /**
+     Reads len bytes from the start of the channel straight into dst at offset, large files
+     are copied from the mapping without intermediate buffers. Channel position is not used,
+     so different channels can be read concurrently into the same array.
+     @return number of bytes read
+    */
+    private static int read(FileChannel fc, byte[] dst, int offset, int len) throws IOException {
+        if (len >= MAP_THRESHOLD) {
+            fc.map(FileChannel.MapMode.READ_ONLY, 0, len).get(dst, offset, len);
+            return len;
+        }
+        ByteBuffer b = ByteBuffer.wrap(dst, offset, len);
+        while (b.hasRemaining()) {
+            if (fc.read(b, b.position() - offset) < 0) {
+                break;
+            }
+        }
+        return b.position() - offset;
+    }
+
+    public static void close(Closeable c) {
+        try {
+            if (c != null) {
+                c.close();
+            }
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    /** atomically replaces "to" with "from" where file system supports it */
+    public static void move(File from, File to) {
         try {
-            if (s != null) {
-                s.close();
+            try {
+                Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException x) {
+                Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     @return new temporary file next to "to" (in the same directory so it can be moved over "to" atomically),
+     uniquely named so concurrent builds into the same directory do not overwrite each other
+    */
+    public static File sibling(File to) throws IOException {
+        return File.createTempFile(to.getName() + ".", ".tmp", to.getAbsoluteFile().getParentFile());
+    }
+
+    /** removes temporary file t unless it has been moved to its destination already */
+    public static void discard(File t) {
+        if (t.exists() && !t.delete()) {
+            System.err.println("WARNING: failed to delete " + t);
+        }
+    }
+
+    /** atomically replaces "to" with b, readers never see partially written file */
+    public static void write(File to, byte[] b) {
+        try {
+            File t = sibling(to);
+            try {
+                Files.write(t.toPath(), b);
+                move(t, to);
+            } finally {
+                discard(t);
             }
         } catch (IOException e) {
             throw new Error(e);
@@ -82,52 +165,452 @@ public class io {
         return "application/octet-stream"; // default to binary resource
     }
 
-    private static byte[] combine(File f) {
+    /** @return files listed in the include file (lines starting with '#' are comments) */
+    public static List<File> parts(File f) {
         String s = new String(readFileContentFully(f));
         String[] lines = s.split("\\r?\\n");
-        int total = 0;
+        ArrayList<File> parts = new ArrayList<File>(lines.length);
         for (String line : lines) {
             String t = line.trim();
             if (t.length() > 0 && !t.startsWith("#")) {
                 File i = new File(f.getParentFile(), t);
                 if (i.exists()) {
-                    total += i.length();
+                    parts.add(i);
                 } else {
                     throw new Error("file " + i + " not found.");
                 }
             }
         }
-        byte[] content = new byte[total];
-        int offset = 0;
-        for (String line : lines) {
-            String t = line.trim();
-            if (t.length() > 0 && !t.startsWith("#")) {
-                File i = new File(f.getParentFile(), t);
-                byte[] buf = readFileContentFully(i);
-                System.arraycopy(buf, 0, content, offset, buf.length);
-                offset += buf.length;
+        return parts;
+    }
+
+    /**
+     Include file content is read straight into the combined array, each part only
+     opened (and its size taken) once, several parts concurrently.
+    */
+    private static byte[] combine(File f) {
+        List<File> parts = parts(f);
+        FileInputStream[] streams = new FileInputStream[parts.size()];
+        try {
+            long[] sizes = new long[parts.size()];
+            long total = 0;
+            for (int i = 0; i < streams.length; i++) {
+                streams[i] = new FileInputStream(parts.get(i));
+                sizes[i] = streams[i].getChannel().size();
+                total += sizes[i];
+            }
+            final byte[] content = new byte[size(f, total)];
+            if (streams.length == 1) {
+                if (read(streams[0].getChannel(), content, 0, content.length) != content.length) {
+                    throw new IOException("file " + parts.get(0) + " changed while being read");
+                }
+                return content;
+            }
+            ArrayList<Future<Integer>> reads = new ArrayList<Future<Integer>>(streams.length);
+            int offset = 0;
+            for (int i = 0; i < streams.length; i++) {
+                final FileChannel fc = streams[i].getChannel();
+                final int at = offset;
+                final int len = (int)sizes[i];
+                reads.add(readers().submit(new Callable<Integer>() {
+                    public Integer call() throws IOException {
+                        return read(fc, content, at, len);
+                    }
+                }));
+                offset += len;
+            }
+            for (int i = 0; i < reads.size(); i++) {
+                if (get(reads.get(i)) != sizes[i]) {
+                    throw new IOException("file " + parts.get(i) + " changed while being read");
+                }
+            }
+            return content;
+        } catch (IOException e) {
+            throw new Error(e);
+        } finally {
+            for (FileInputStream s : streams) {
+                close(s);
             }
         }
-        return content;
     }
 
-    public static byte[] readFully(InputStream is) {
+    private static ExecutorService readers; // reads parts of include files, created on first use
+
+    private static synchronized ExecutorService readers() {
+        if (readers == null) {
+            readers = Executors.newFixedThreadPool(Math.min(4, Runtime.getRuntime().availableProcessors()),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "io.readers");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return readers;
+    }
+
+    private static int get(Future<Integer> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new Error(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new Error(e.getCause());
+        }
+    }
+
+    /**
+     Atomically creates "to" with the content of f (parts of the include file one after another)
+     transferred by the file system without passing through user space buffers.
+    */
+    public static void copy(File f, File to) {
+        List<File> parts = isIncludeFile(f) ? parts(f) : Collections.singletonList(f);
+        try {
+            File t = sibling(to);
+            try {
+                FileOutputStream os = new FileOutputStream(t);
+                try {
+                    FileChannel out = os.getChannel();
+                    for (File p : parts) {
+                        FileInputStream is = new FileInputStream(p);
+                        try {
+                            FileChannel in = is.getChannel();
+                            long n = in.size();
+                            for (long k = 0; k < n; ) {
+                                long c = in.transferTo(k, n - k, out);
+                                if (c <= 0) {
+                                    break; // truncated while being copied
+                                }
+                                k += c;
+                            }
+                        } finally {
+                            is.close();
+                        }
+                    }
+                } finally {
+                    os.close();
+                }
+                move(t, to);
+            } finally {
+                discard(t);
+            }
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     @return stream of the file content or, for the include file, read-only view
+     over its parts streamed one after another (never combined in memory)
+    */
+    public static InputStream open(File f) throws IOException {
+        if (!isIncludeFile(f)) {
+            return stream(f);
+        }
+        final Iterator<File> parts = parts(f).iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+
+            public boolean hasMoreElements() {
+                return parts.hasNext();
+            }
+
+            public InputStream nextElement() {
+                try {
+                    return stream(parts.next());
+                } catch (IOException e) {
+                    throw new Error(e);
+                }
+            }
+        });
+    }
+
+    /**
+     @return stream of the file itself (include file is not expanded), memory mapped
+     when the file is large so base64() and sha256() read it without copying to heap
+    */
+    public static InputStream stream(File f) throws IOException {
+        if (f.length() < MAP_THRESHOLD) {
+            return new FileInputStream(f);
+        }
+        FileInputStream s = new FileInputStream(f);
         try {
-            int len = Math.max(4096, is.available());
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-            byte[] buf = new byte[len];
+            FileChannel fc = s.getChannel();
+            return new Mapped(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+        } finally {
+            s.close(); // mapping stays valid after the channel is closed
+        }
+    }
+
+    /** mapped file content, unmapped when garbage collected */
+    private static class Mapped extends InputStream {
+
+        private final ByteBuffer buf;
+
+        Mapped(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        public long skip(long n) {
+            int k = (int)Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + k);
+            return k;
+        }
+
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     Writes f.gz with maximum compression unless it is up to date.
+     @return size of f.gz or -1 if compressed content is not smaller than f (f.gz is removed then)
+    */
+    public static long gzip(File f) {
+        File gz = new File(f.getParentFile(), f.getName() + ".gz");
+        if (isFile(gz) && gz.lastModified() > f.lastModified()) {
+            return gz.length();
+        }
+        try {
+            File t = sibling(gz);
+            try {
+                InputStream is = new FileInputStream(f);
+                try {
+                    OutputStream os = new GZIPOutputStream(new FileOutputStream(t), 64 * 1024) {{
+                        def.setLevel(Deflater.BEST_COMPRESSION);
+                    }};
+                    try {
+                        byte[] buf = new byte[64 * 1024];
+                        for (int k = is.read(buf); k > 0; k = is.read(buf)) {
+                            os.write(buf, 0, k);
+                        }
+                    } finally {
+                        os.close();
+                    }
+                } finally {
+                    is.close();
+                }
+                if (t.length() >= f.length()) {
+                    if (gz.exists() && !gz.delete()) {
+                        throw new IOException("failed to delete stale " + gz);
+                    }
+                    return -1;
+                }
+                move(t, gz);
+                return gz.length();
+            } finally {
+                discard(t);
+            }
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    private static File temp; // files made during the run (optimized images, svg data uris, sprites)
+
+    private static synchronized File temp() throws IOException {
+        if (temp == null) {
+            final File d = Files.createTempDirectory("embedjs").toFile();
+            // whole directory at once: deleteOnExit() of every file would pile up during -w
+            Runtime.getRuntime().addShutdownHook(new Thread("io.temp") {
+                public void run() {
+                    delete(d);
+                }
+            });
+            temp = d;
+        }
+        return temp;
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File g : files) {
+                delete(g);
+            }
+        }
+        f.delete();
+    }
+
+    /** @return new file with the bytes, deleted on exit */
+    public static File temp(String suffix, byte[] b) throws IOException {
+        File f = File.createTempFile("embedjs", suffix, temp());
+        Files.write(f.toPath(), b);
+        return f;
+    }
+
+    /** @return new file with the bytes named exactly name (in a directory of its own), deleted on exit */
+    public static File named(String name, byte[] b) throws IOException {
+        File d = Files.createTempDirectory(temp().toPath(), "embedjs").toFile();
+        File f = new File(d, name);
+        Files.write(f.toPath(), b);
+        return f;
+    }
+
+    /** @return true if the file has been made during the run (see temp) */
+    public static boolean isTemp(File f) {
+        File d;
+        synchronized (io.class) {
+            d = temp;
+        }
+        return d != null && f.getAbsolutePath().startsWith(d.getAbsolutePath() + File.separator);
+    }
+
+    /** @return length of the file content (or combined length of the include file parts) */
+    public static long length(File f) {
+        if (!isIncludeFile(f)) {
+            return f.length();
+        }
+        long n = 0;
+        for (File p : parts(f)) {
+            n += p.length();
+        }
+        return n;
+    }
+
+    /** @return hex SHA-256 of the stream content */
+    public static String sha256(InputStream is) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            if (is instanceof Mapped) {
+                md.update(((Mapped)is).buf);
+                return hex(md.digest());
+            }
+            byte[] buf = new byte[64 * 1024];
             for (;;) {
                 int k = is.read(buf);
                 if (k <= 0) {
-                    return baos.toByteArray();
+                    return hex(md.digest());
+                }
+                md.update(buf, 0, k);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    }
+
+    /** streams base64 encoding of the content to w, padding is only written at the very end */
+    public static void base64(InputStream is, Writer w) throws IOException {
+        int chunk = 3 * 16 * 1024; // must be multiple of 3
+        char[] out = new char[chunk / 3 * 4];
+        if (is instanceof Mapped) {
+            ByteBuffer b = ((Mapped)is).buf;
+            while (b.hasRemaining()) {
+                w.write(out, 0, base64(b, Math.min(chunk, b.remaining()), out));
+            }
+            return;
+        }
+        byte[] buf = new byte[chunk];
+        for (;;) {
+            int n = 0;
+            int k = 0;
+            while (n < buf.length && (k = is.read(buf, n, buf.length - n)) > 0) {
+                n += k;
+            }
+            w.write(out, 0, base64(buf, n, out));
+            if (n < buf.length) {
+                return;
+            }
+        }
+    }
+
+    /** encodes next len bytes of the (mapped) buffer without copying them to heap */
+    private static int base64(ByteBuffer src, int len, char[] dst) {
+        byte[] a = Base64.ALPHABET;
+        int j = 0;
+        int end = src.position() + len;
+        int i = src.position();
+        for (; i + 2 < end; i += 3) {
+            int v = (src.get(i) & 0xFF) << 16 | (src.get(i + 1) & 0xFF) << 8 | (src.get(i + 2) & 0xFF);
+            dst[j++] = (char)a[v >>> 18];
+            dst[j++] = (char)a[(v >>> 12) & 0x3F];
+            dst[j++] = (char)a[(v >>> 6) & 0x3F];
+            dst[j++] = (char)a[v & 0x3F];
+        }
+        if (i < end) { // one or two bytes left
+            int v = (src.get(i) & 0xFF) << 16 | (i + 1 < end ? (src.get(i + 1) & 0xFF) << 8 : 0);
+            dst[j++] = (char)a[v >>> 18];
+            dst[j++] = (char)a[(v >>> 12) & 0x3F];
+            dst[j++] = i + 1 < end ? (char)a[(v >>> 6) & 0x3F] : '=';
+            dst[j++] = '=';
+        }
+        src.position(end);
+        return j;
+    }
+
+    private static int base64(byte[] src, int len, char[] dst) {
+        byte[] a = Base64.ALPHABET;
+        int i = 0;
+        int j = 0;
+        for (; i + 2 < len; i += 3) {
+            int v = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+            dst[j++] = (char)a[v >>> 18];
+            dst[j++] = (char)a[(v >>> 12) & 0x3F];
+            dst[j++] = (char)a[(v >>> 6) & 0x3F];
+            dst[j++] = (char)a[v & 0x3F];
+        }
+        if (i < len) { // one or two bytes left
+            int v = (src[i] & 0xFF) << 16 | (i + 1 < len ? (src[i + 1] & 0xFF) << 8 : 0);
+            dst[j++] = (char)a[v >>> 18];
+            dst[j++] = (char)a[(v >>> 12) & 0x3F];
+            dst[j++] = i + 1 < len ? (char)a[(v >>> 6) & 0x3F] : '=';
+            dst[j++] = '=';
+        }
+        return j;
+    }
+
+    /** reads straight into the result array, grown only when available() underestimated the size */
+    public static byte[] readFully(InputStream is) {
+        try {
+            byte[] buf = new byte[Math.max(4096, is.available())];
+            int n = 0;
+            for (;;) {
+                if (n == buf.length) {
+                    int k = is.read();
+                    if (k < 0) {
+                        return buf;
+                    }
+                    buf = Arrays.copyOf(buf, Math.max(buf.length * 2, n + is.available() + 1));
+                    buf[n++] = (byte)k;
                 }
-                baos.write(buf, 0, k);
+                int k = is.read(buf, n, buf.length - n);
+                if (k < 0) {
+                    return n == buf.length ? buf : Arrays.copyOf(buf, n);
+                }
+                n += k;
             }
         } catch (IOException e) {
             throw new Error(e);
         }
     }
 
+    public static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
     public static String getCanonicalPath(File f) {
         try {
             return f.getCanonicalPath();